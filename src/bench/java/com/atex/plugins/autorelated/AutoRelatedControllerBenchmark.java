@@ -0,0 +1,136 @@
+package com.atex.plugins.autorelated;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CmClient;
+import com.polopoly.cm.policy.Policy;
+import com.polopoly.metadata.Dimension;
+import com.polopoly.metadata.Entity;
+import com.polopoly.metadata.Metadata;
+import com.polopoly.render.RenderRequest;
+import com.polopoly.siteengine.dispatcher.ControllerContext;
+import com.polopoly.siteengine.model.TopModel;
+
+/**
+ * Benchmarks the whole {@link AutoRelatedController#populateModelBeforeCacheKey(RenderRequest, TopModel, ControllerContext)}
+ * flow against stub cm server and search client.
+ *
+ * <code>cacheHit</code> always renders the same article so the related list comes from
+ * the cache and the article is never loaded, <code>cacheMiss</code> uses a new cache key and a new entity at every
+ * invocation so the related list is always calculated and the results shared by the contents with the same metadata
+ * are never found.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AutoRelatedControllerBenchmark {
+
+    @Param({ "20", "200" })
+    public int hits;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private AutoRelatedController hitController;
+    private AutoRelatedController missController;
+    private RenderRequest request;
+    private TopModel model;
+    private ControllerContext context;
+
+    @Setup
+    public void setup() throws Exception {
+        final BenchmarkFixtures fixtures = new BenchmarkFixtures(3, 5, 3, hits);
+        request = mock(RenderRequest.class);
+        model = mock(TopModel.class, RETURNS_DEEP_STUBS);
+        context = mock(ControllerContext.class);
+        fixtures.stubRender(request, model, context);
+
+        hitController = new BenchmarkController(fixtures, false);
+        missController = new BenchmarkController(fixtures, true);
+    }
+
+    @Benchmark
+    public TopModel cacheHit() {
+        hitController.populateModelBeforeCacheKey(request, model, context);
+        return model;
+    }
+
+    @Benchmark
+    public TopModel cacheMiss() {
+        missController.populateModelBeforeCacheKey(request, model, context);
+        return model;
+    }
+
+    private class BenchmarkController extends AutoRelatedController {
+
+        private final BenchmarkFixtures fixtures;
+        private final CmClient cmClient;
+        private final boolean alwaysMiss;
+
+        BenchmarkController(final BenchmarkFixtures fixtures, final boolean alwaysMiss) {
+            this.fixtures = fixtures;
+            this.cmClient = fixtures.getCmClient();
+            this.alwaysMiss = alwaysMiss;
+        }
+
+        @Override
+        protected CmClient getCmClient(final ControllerContext context) {
+            return cmClient;
+        }
+
+        @Override
+        protected SiteSettingsPolicy getSiteSettingsPolicy(final TopModel m) {
+            return fixtures.getSettings();
+        }
+
+        @Override
+        protected Metadata getMetadata(final Policy policy) {
+            if (alwaysMiss) {
+                return addEntity(fixtures.getMetadata(), "entity-" + counter.incrementAndGet());
+            }
+            return fixtures.getMetadata();
+        }
+
+        @Override
+        protected String getIdsCacheKey(final ContentId contentId) {
+            if (alwaysMiss) {
+                return super.getIdsCacheKey(contentId) + "-" + counter.incrementAndGet();
+            }
+            return super.getIdsCacheKey(contentId);
+        }
+    }
+
+    private static Metadata addEntity(final Metadata metadata, final String entityId) {
+        final Metadata newMetadata = new Metadata();
+        for (final Dimension dimension : metadata.getDimensions()) {
+            final List<Entity> entities = Lists.newArrayList(dimension.getEntities());
+            if (newMetadata.getDimensions().isEmpty()) {
+                entities.add(new Entity(entityId, entityId));
+            }
+            newMetadata.addDimension(new Dimension(dimension.getId(), dimension.getName(), dimension.isEnumerable(), entities));
+        }
+        return newMetadata;
+    }
+
+}
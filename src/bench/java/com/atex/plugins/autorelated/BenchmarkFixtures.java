@@ -0,0 +1,225 @@
+package com.atex.plugins.autorelated;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Lists;
+import com.polopoly.application.Application;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.ContentReference;
+import com.polopoly.cm.ExternalContentId;
+import com.polopoly.cm.VersionedContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.client.CmClient;
+import com.polopoly.cm.client.ContentRead;
+import com.polopoly.cm.collections.ContentList;
+import com.polopoly.cm.policy.ContentPolicy;
+import com.polopoly.cm.policy.PolicyCMServer;
+import com.polopoly.metadata.Dimension;
+import com.polopoly.metadata.Entity;
+import com.polopoly.metadata.Metadata;
+import com.polopoly.metadata.MetadataDimension;
+import com.polopoly.render.RenderRequest;
+import com.polopoly.search.solr.SearchResult;
+import com.polopoly.search.solr.SearchResultPage;
+import com.polopoly.search.solr.SolrSearchClient;
+import com.polopoly.search.solr.querydecorators.WithDecorators;
+import com.polopoly.siteengine.dispatcher.ControllerContext;
+import com.polopoly.siteengine.model.TopModel;
+
+/**
+ * Stub cm server, search client and site settings used by the benchmarks.
+ *
+ * Everything is created once in the setup of the benchmark, so the
+ * measured code only pays for the calls to the stubs.
+ */
+public class BenchmarkFixtures {
+
+    public static final int SITE_MAJOR = 2;
+    public static final int ARTICLE_MAJOR = 1;
+    public static final int DIMENSION_MAJOR = 7;
+
+    private final PolicyCMServer cmServer = mock(PolicyCMServer.class);
+    private final SolrSearchClient searchClient = mock(SolrSearchClient.class);
+    private final SiteSettingsPolicy settings = mock(SiteSettingsPolicy.class);
+    private final ContentPolicy article = mock(ContentPolicy.class, RETURNS_DEEP_STUBS);
+    private final Metadata metadata;
+
+    /**
+     * Create the fixtures.
+     *
+     * @param dimensions the number of dimensions of the article metadata.
+     * @param entitiesPerDimension the number of entities in every dimension.
+     * @param configuredDimensions how many of the article dimensions are configured in the site settings.
+     * @param hitsCount the number of hits returned by the search client.
+     */
+    public BenchmarkFixtures(final int dimensions,
+                             final int entitiesPerDimension,
+                             final int configuredDimensions,
+                             final int hitsCount) throws CMException {
+
+        metadata = createMetadata(dimensions, entitiesPerDimension);
+        final List<ContentId> hits = createIds(ARTICLE_MAJOR, 1000, hitsCount);
+
+        final List<ContentId> dimensionIds = Lists.newArrayList();
+        for (int idx = 0; idx < configuredDimensions; idx++) {
+            final ContentId dimensionId = new ContentId(DIMENSION_MAJOR, 100 + idx);
+            final ContentPolicy dimensionPolicy = mock(ContentPolicy.class, withSettings().extraInterfaces(MetadataDimension.class));
+            when(((MetadataDimension) dimensionPolicy).getDimension()).thenReturn(metadata.getDimensions().get(idx));
+            when(cmServer.getPolicy(dimensionId)).thenReturn(dimensionPolicy);
+            dimensionIds.add(dimensionId);
+        }
+
+        when(cmServer.contentExists(any(ContentId.class))).thenReturn(true);
+
+        // the related items shown by the template.
+
+        final ContentRead content = mock(ContentRead.class);
+        when(content.getName()).thenReturn("Related article");
+        when(content.getSecurityParentId()).thenReturn(new ContentId(SITE_MAJOR, 20));
+        when(cmServer.getContent(any(ContentId.class))).thenReturn(content);
+
+        final VersionedContentId settingsId = new VersionedContentId(SITE_MAJOR, 10, 3);
+        when(settings.getContentId()).thenReturn(settingsId);
+        when(settings.getCMServer()).thenReturn(cmServer);
+        when(settings.isEnabled()).thenReturn(true);
+        when(settings.isAjax()).thenReturn(false);
+        when(settings.isCommittedVersion()).thenReturn(true);
+        when(settings.getMaxResults()).thenReturn(5);
+        when(settings.getMinimumMatch()).thenReturn("2");
+        when(settings.getCacheTime()).thenReturn(600000L);
+        when(settings.getCacheSize()).thenReturn(1000);
+        when(settings.getRefreshTime()).thenReturn(0L);
+        when(settings.getSourcesContentList()).thenReturn(createContentList(Collections.<ContentId>emptyList()));
+        when(settings.getCategorizationContentList()).thenReturn(createContentList(dimensionIds));
+
+        // the decorators are modified by the callers, every call must get a new instance.
+
+        when(settings.getDecorators()).thenAnswer(new Answer<WithDecorators>() {
+            @Override
+            public WithDecorators answer(final InvocationOnMock invocation) {
+                return new WithDecorators();
+            }
+        });
+
+        when(article.getContentId()).thenReturn(new VersionedContentId(ARTICLE_MAJOR, 1, 1));
+        when(article.getCMServer()).thenReturn(cmServer);
+        when(article.getInputTemplate().getExternalId()).thenReturn(new ExternalContentId("standard.Article"));
+        when(article.getComponent("allowAutorelated", "value")).thenReturn(null);
+        when(article.getContentList("related")).thenReturn(createContentList(createIds(ARTICLE_MAJOR, 500, 3)));
+        when(article.getContentList("autorelated")).thenReturn(createContentList(Collections.<ContentId>emptyList()));
+        when(cmServer.getPolicy(new ContentId(ARTICLE_MAJOR, 1))).thenReturn(article);
+
+        final SearchResult searchResult = createSearchResult(hits);
+        when(searchClient.search(any(SolrQuery.class), anyInt())).thenReturn(searchResult);
+    }
+
+    public PolicyCMServer getCmServer() {
+        return cmServer;
+    }
+
+    public SolrSearchClient getSearchClient() {
+        return searchClient;
+    }
+
+    public SiteSettingsPolicy getSettings() {
+        return settings;
+    }
+
+    public ContentPolicy getArticle() {
+        return article;
+    }
+
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Create the render objects for a request of the article page.
+     *
+     * @param request will be stubbed as a plain (not ajax) request.
+     * @param model will be stubbed with a page with the article.
+     * @param context will be stubbed with an application which returns the search client.
+     */
+    public void stubRender(final RenderRequest request, final TopModel model, final ControllerContext context) {
+        when(request.getParameter(AutoRelatedController.FRAGMENT_PARAM)).thenReturn(null);
+        when(model.getContext().getPage().getPathAfterPage().isEmpty()).thenReturn(false);
+        when(model.getContext().getPage().getPathAfterPage().getLast()).thenReturn(new ContentId(ARTICLE_MAJOR, 1));
+        final Application application = mock(Application.class);
+        when(application.getApplicationComponent(SolrSearchClient.DEFAULT_COMPOUND_NAME)).thenReturn(searchClient);
+        when(context.getApplication()).thenReturn(application);
+    }
+
+    public CmClient getCmClient() {
+        final CmClient cmClient = mock(CmClient.class);
+        when(cmClient.getPolicyCMServer()).thenReturn(cmServer);
+        return cmClient;
+    }
+
+    public static Metadata createMetadata(final int dimensions, final int entitiesPerDimension) {
+        final Metadata metadata = new Metadata();
+        for (int d = 0; d < dimensions; d++) {
+            final List<Entity> entities = Lists.newArrayList();
+            for (int e = 0; e < entitiesPerDimension; e++) {
+                entities.add(new Entity("entity-" + d + "-" + e, "Entity " + e));
+            }
+            metadata.addDimension(new Dimension("dimension." + d, "Dimension " + d, false, entities));
+        }
+        return metadata;
+    }
+
+    public static List<ContentId> createIds(final int major, final int firstMinor, final int count) {
+        final List<ContentId> ids = Lists.newArrayListWithCapacity(count);
+        for (int idx = 0; idx < count; idx++) {
+            ids.add(new ContentId(major, firstMinor + idx));
+        }
+        return ids;
+    }
+
+    private static ContentList createContentList(final List<ContentId> ids) throws CMException {
+        final List<ContentReference> references = Lists.newArrayList();
+        final ContentList list = mock(ContentList.class);
+        for (int idx = 0; idx < ids.size(); idx++) {
+            final ContentReference reference = mock(ContentReference.class);
+            when(reference.getReferredContentId()).thenReturn(ids.get(idx));
+            when(list.getEntry(idx)).thenReturn(reference);
+            references.add(reference);
+        }
+        when(list.size()).thenReturn(ids.size());
+        when(list.getListIterator()).thenAnswer(new Answer<ListIterator<ContentReference>>() {
+            @Override
+            public ListIterator<ContentReference> answer(final InvocationOnMock invocation) {
+                return references.listIterator();
+            }
+        });
+        return list;
+    }
+
+    private static SearchResult createSearchResult(final List<ContentId> hits) {
+        final SearchResultPage page = mock(SearchResultPage.class);
+        when(page.getHits()).thenReturn(hits);
+        final List<SearchResultPage> pages = Collections.singletonList(page);
+        final SearchResult result = mock(SearchResult.class);
+        when(result.iterator()).thenAnswer(new Answer<Iterator<SearchResultPage>>() {
+            @Override
+            public Iterator<SearchResultPage> answer(final InvocationOnMock invocation) {
+                return pages.iterator();
+            }
+        });
+        return result;
+    }
+
+}
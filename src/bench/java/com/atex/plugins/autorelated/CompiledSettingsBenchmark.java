@@ -0,0 +1,53 @@
+package com.atex.plugins.autorelated;
+
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.polopoly.cm.client.CMException;
+
+/**
+ * Benchmarks the settings fingerprint (it replaced the settings cache key),
+ * both when it is served from the cache and when it must be compiled as
+ * it happens for an uncommitted version of the settings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompiledSettingsBenchmark {
+
+    private BenchmarkFixtures committed;
+    private BenchmarkFixtures uncommitted;
+
+    @Setup
+    public void setup() throws Exception {
+        committed = new BenchmarkFixtures(3, 5, 3, 100);
+        uncommitted = new BenchmarkFixtures(3, 5, 3, 100);
+        when(uncommitted.getSettings().isCommittedVersion()).thenReturn(false);
+    }
+
+    @Benchmark
+    public String fingerprint() throws CMException {
+        return CompiledSettings.of(committed.getSettings()).getFingerprint();
+    }
+
+    @Benchmark
+    public String fingerprintUncommitted() throws CMException {
+        return CompiledSettings.of(uncommitted.getSettings()).getFingerprint();
+    }
+
+}
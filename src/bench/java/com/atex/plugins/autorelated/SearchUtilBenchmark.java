@@ -0,0 +1,70 @@
+package com.atex.plugins.autorelated;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.polopoly.cm.ContentId;
+import com.polopoly.metadata.Metadata;
+
+/**
+ * Benchmarks of the {@link SearchUtil} methods used to build the related query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchUtilBenchmark {
+
+    @Param({ "2", "5" })
+    public int dimensions;
+
+    @Param({ "3", "20" })
+    public int entitiesPerDimension;
+
+    private final SearchUtil searchUtil = new SearchUtil();
+    private final ContentId contentId = new ContentId(BenchmarkFixtures.ARTICLE_MAJOR, 1);
+
+    private BenchmarkFixtures fixtures;
+    private Metadata emptyMetadata;
+
+    @Setup
+    public void setup() throws Exception {
+        fixtures = new BenchmarkFixtures(dimensions, entitiesPerDimension, dimensions - 1, 100);
+        emptyMetadata = BenchmarkFixtures.createMetadata(dimensions, 0);
+    }
+
+    @Benchmark
+    public SolrQuery getSolrQuery() {
+        return searchUtil.getSolrQuery(contentId, "standard.Article", fixtures.getMetadata(), "2");
+    }
+
+    @Benchmark
+    public Metadata filterMetadata() {
+        return searchUtil.filterMetadata(fixtures.getSettings(), fixtures.getMetadata());
+    }
+
+    @Benchmark
+    public boolean hasMetadata() {
+        return searchUtil.hasMetadata(fixtures.getMetadata());
+    }
+
+    @Benchmark
+    public boolean hasMetadataWithoutEntities() {
+        return searchUtil.hasMetadata(emptyMetadata);
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.atex.plugins.autorelated;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.atex.plugins.autorelated.decorators.WithoutContentId;
+import com.polopoly.cm.ContentId;
+
+/**
+ * Benchmarks {@link WithoutContentId} with large exclusion lists.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WithoutContentIdBenchmark {
+
+    @Param({ "1", "10", "100", "1000" })
+    public int excluded;
+
+    private WithoutContentId decorator;
+
+    @Setup
+    public void setup() {
+        final List<ContentId> ids = BenchmarkFixtures.createIds(BenchmarkFixtures.ARTICLE_MAJOR, 1, excluded);
+        decorator = new WithoutContentId(ids.toArray(new ContentId[ids.size()]));
+    }
+
+    @Benchmark
+    public SolrQuery decorate() {
+        return decorator.decorate(new SolrQuery("*:*"));
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AtomicDouble;
+
+/**
+ * Decide how many rows the related search asks to solr.
+ *
+ * The search starts with a small page and further pages are fetched only
+ * when the hits are dropped (i.e. they do not exist anymore). For every
+ * site we keep a moving average of the drop rate, so the first page is
+ * big enough to fill the list in the common case.
+ */
+public class AdaptiveFetchSize {
+
+    private static final int MAX_EXTRA_ROWS = Integer.getInteger("autorelated.fetch.maxExtraRows", 100);
+    private static final double MAX_DROP_RATE = 0.9;
+    private static final double ALPHA = 0.1;
+    private static final double SAFETY = 1.25;
+
+    private final ConcurrentMap<String, AtomicDouble> dropRates = new ConcurrentHashMap<>();
+    private final int maxExtraRows;
+
+    public AdaptiveFetchSize() {
+        this(MAX_EXTRA_ROWS);
+    }
+
+    public AdaptiveFetchSize(final int maxExtraRows) {
+        this.maxExtraRows = maxExtraRows;
+    }
+
+    /**
+     * The size of the first page.
+     *
+     * @param siteKey the site.
+     * @param maxResults the number of contents we want.
+     * @param excluded the number of contents excluded after the fetch.
+     * @return the number of rows.
+     */
+    public int getPageSize(final String siteKey, final int maxResults, final int excluded) {
+        final double dropRate = getDropRate(siteKey);
+        final int expected = (int) Math.ceil(maxResults * SAFETY / (1 - dropRate)) + excluded;
+        return Math.min(Math.max(2 * maxResults, expected), getMaxRows(maxResults, excluded));
+    }
+
+    /**
+     * The maximum number of hits read, in all the pages.
+     *
+     * @param maxResults the number of contents we want.
+     * @param excluded the number of contents excluded after the fetch.
+     * @return the number of rows.
+     */
+    public int getMaxRows(final int maxResults, final int excluded) {
+        return maxResults + excluded + maxExtraRows;
+    }
+
+    /**
+     * Record the outcome of a search.
+     *
+     * @param siteKey the site.
+     * @param read the number of hits read, the excluded hits are not counted.
+     * @param kept the number of hits kept.
+     */
+    public void record(final String siteKey, final int read, final int kept) {
+        if (read <= 0) {
+            return;
+        }
+        final double dropRate = Math.min(MAX_DROP_RATE, 1 - ((double) kept / read));
+        AtomicDouble average = dropRates.get(siteKey);
+        if (average == null) {
+            final AtomicDouble newAverage = new AtomicDouble(dropRate);
+            average = dropRates.putIfAbsent(siteKey, newAverage);
+            if (average == null) {
+                return;
+            }
+        }
+        double current;
+        do {
+            current = average.get();
+        } while (!average.compareAndSet(current, current + ALPHA * (dropRate - current)));
+    }
+
+    public double getDropRate(final String siteKey) {
+        final AtomicDouble average = dropRates.get(siteKey);
+        return (average != null) ? average.get() : 0;
+    }
+
+    public Map<String, Double> getDropRates() {
+        final Map<String, Double> rates = Maps.newTreeMap();
+        for (final Map.Entry<String, AtomicDouble> entry : dropRates.entrySet()) {
+            rates.put(entry.getKey(), entry.getValue().get());
+        }
+        return rates;
+    }
+
+}
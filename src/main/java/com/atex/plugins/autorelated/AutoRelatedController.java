@@ -1,22 +1,13 @@
 package com.atex.plugins.autorelated;
 
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.solr.client.solrj.SolrQuery;
-
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.collect.Lists;
 import com.polopoly.application.Application;
 import com.polopoly.cm.ContentId;
 import com.polopoly.cm.app.policy.ContentListModel;
 import com.polopoly.cm.client.CMException;
-import com.polopoly.cm.client.CMRuntimeException;
 import com.polopoly.cm.collections.ContentList;
 import com.polopoly.cm.collections.ContentListSimple;
 import com.polopoly.cm.collections.ContentListUtil;
@@ -29,8 +20,6 @@ import com.polopoly.model.ModelFactory;
 import com.polopoly.model.ModelPathUtil;
 import com.polopoly.render.RenderRequest;
 import com.polopoly.search.solr.SearchClient;
-import com.polopoly.search.solr.SearchResult;
-import com.polopoly.search.solr.SearchResultPage;
 import com.polopoly.search.solr.SolrSearchClient;
 import com.polopoly.search.solr.querydecorators.WithDecorators;
 import com.polopoly.siteengine.dispatcher.ControllerContext;
@@ -50,13 +39,70 @@ public class AutoRelatedController extends RenderControllerBase {
 
     private static final Logger LOGGER = Logger.getLogger(AutoRelatedController.class.getName());
 
-    private static final Cache<String, List<ContentId>> IDS_CACHE =  CacheBuilder.newBuilder()
-                                                                                 .maximumSize(1000)
-                                                                                 .expireAfterAccess(10, TimeUnit.MINUTES)
-                                                                                 .build();
+    /**
+     * Request parameter used, in ajax mode, to ask for the related list.
+     */
+    public static final String FRAGMENT_PARAM = "autorelated";
+    public static final String FRAGMENT_VALUE = "fragment";
+
+    /**
+     * Output template used to render the page in the ajax request, it only renders the related list
+     * (see <code>com.atex.plugins.autorelated.fragment.content</code>) so the page layout is skipped.
+     */
+    public static final String FRAGMENT_OUTPUT_TEMPLATE = "com.atex.plugins.autorelated.AutoRelatedFragment.ot";
 
     private final SearchUtil searchUtil = new SearchUtil();
 
+    // the search client of the last application, the controller is usually used by only one.
+
+    private volatile SearchClientLookup searchClientLookup;
+
+    // the calculator delegates to the controller methods so they can still be overridden.
+
+    private final RelatedCalculator calculator = new RelatedCalculator() {
+        @Override
+        protected boolean shouldCalculateRelated(final Policy policy, final Metadata metadata) throws CMException {
+            return AutoRelatedController.this.shouldCalculateRelated(policy, metadata);
+        }
+
+        @Override
+        protected Metadata getMetadata(final Policy policy) {
+            return AutoRelatedController.this.getMetadata(policy);
+        }
+
+        @Override
+        protected void excludeRelated(final ContentPolicy policy, final WithDecorators decorators) {
+            AutoRelatedController.this.excludeRelated(policy, decorators);
+        }
+    };
+
+    private final RelatedService service = new RelatedService(calculator) {
+        @Override
+        protected RelatedIdsCache getIdsCache() {
+            return AutoRelatedController.this.getIdsCache();
+        }
+
+        @Override
+        protected String getIdsCacheKey(final ContentId contentId) {
+            return AutoRelatedController.this.getIdsCacheKey(contentId);
+        }
+
+        @Override
+        protected PrecomputedStore getPrecomputedStore() {
+            return AutoRelatedController.this.getPrecomputedStore();
+        }
+
+        @Override
+        protected RelatedCoalescer getCoalescer() {
+            return AutoRelatedController.this.getCoalescer();
+        }
+
+        @Override
+        protected NegativeRelatedCache getNegativeCache() {
+            return AutoRelatedController.this.getNegativeCache();
+        }
+    };
+
     @Override
     public void populateModelBeforeCacheKey(final RenderRequest request, final TopModel m, final ControllerContext context) {
         super.populateModelBeforeCacheKey(request, m, context);
@@ -69,96 +115,129 @@ public class AutoRelatedController extends RenderControllerBase {
                 return;
             }
             final PolicyCMServer cmServer = getCmClient(context).getPolicyCMServer();
-            final SearchClient searchClient = (SearchClient) application.getApplicationComponent(SolrSearchClient.DEFAULT_COMPOUND_NAME);
+            service.listenTo(cmServer);
+            final SearchClient searchClient = getSearchClient(application);
             try {
                 final SiteSettingsPolicy settings = getSiteSettingsPolicy(m);
                 if (settings != null && settings.isEnabled()) {
+                    if (settings.isAjax() && !isFragmentRequest(request)) {
+
+                        // the page will only contain a placeholder, the related list
+                        // will be asked by the browser with a separate request.
+
+                        ModelPathUtil.set(m.getLocal(), "ajax", Boolean.TRUE);
+                        ModelPathUtil.set(m.getLocal(), "fragmentParam", getFragmentQuery());
+                        return;
+                    }
                     final ContentId contentId = m.getContext().getPage().getPathAfterPage().getLast();
-                    final Policy policy = cmServer.getPolicy(contentId);
-                    final List<ContentId> results = getResultsFromCacheOrLoadIt(searchClient, settings, policy);
+                    if (service.hasNoRelated(settings, contentId)) {
+                        return;
+                    }
+
+                    // the content is loaded only if its related list is not cached.
+
+                    final List<ContentId> results = service.getRelated(cmServer, searchClient, settings, contentId);
                     if (results.size() > 0) {
+
+                        // "related" is the content list model templates have always used, the
+                        // default template only shows the items so it does not read the contents.
+
                         final ContentList contentList = ContentListUtil.unmodifiableContentList(new ContentListSimple(results));
                         ModelPathUtil.set(m.getLocal(), "related", getContentListModel(contentList));
+                        final RelatedItemCache itemCache = getItemCache();
+                        itemCache.listenTo(cmServer);
+                        final List<RelatedItem> items = itemCache.getItems(cmServer, results);
+                        if (items.size() > 0) {
+                            ModelPathUtil.set(m.getLocal(), "relatedItems", items);
+                        }
                     }
                 }
+            } catch (RelatedSearchUnavailableException e) {
+
+                // solr is slow or down, the page is rendered without the related contents.
+
+                LOGGER.log(Level.FINE, e.getMessage());
             } catch (CMException e) {
                 LOGGER.log(Level.SEVERE, e.getMessage(), e);
             }
         }
     }
 
-    protected Cache<String, List<ContentId>> getIdsCache() {
-        return IDS_CACHE;
+    /**
+     * The query string added to the page url to ask for the related list.
+     *
+     * @return a not null string.
+     */
+    protected String getFragmentQuery() {
+        return FRAGMENT_PARAM + "=" + FRAGMENT_VALUE + "&ot=" + FRAGMENT_OUTPUT_TEMPLATE;
     }
 
-    protected String getIdsCacheKey(final Policy policy) {
-        return policy.getContentId().getContentIdString();
+    protected boolean isFragmentRequest(final RenderRequest request) {
+        return FRAGMENT_VALUE.equals(request.getParameter(FRAGMENT_PARAM));
     }
 
-    private List<ContentId> getResultsFromCacheOrLoadIt(final SearchClient searchClient,
-                                                        final SiteSettingsPolicy settings,
-                                                        final Policy policy) throws CMException {
+    protected RelatedIdsCache getIdsCache() {
+        return RelatedService.IDS_CACHE;
+    }
 
-        final String cacheKey = getSettingsCacheKey(settings) + "-" + getIdsCacheKey(policy);
-        try {
-            return getIdsCache().get(cacheKey, new Callable<List<ContentId>>() {
-                @Override
-                public List<ContentId> call() throws Exception {
-                    return getResults(searchClient, settings, policy);
-                }
-            });
-        } catch (ExecutionException e) {
-            throw new CMException(e);
-        }
+    /**
+     * The part of the cache key which identifies the content, see {@link RelatedService#getIdsCacheKey(ContentId)}.
+     *
+     * @param contentId the content.
+     * @return the key.
+     */
+    protected String getIdsCacheKey(final ContentId contentId) {
+        return contentId.getContentId().getContentIdString();
     }
 
-    private String getSettingsCacheKey(final SiteSettingsPolicy settings) throws CMException {
-        final StringBuilder sb = new StringBuilder(settings.getContentId().getContentId().getContentIdString());
-        sb.append(";");
-        sb.append(settings.getMaxResults());
-        sb.append(";");
-        sb.append(settings.getMinimumMatch());
-        sb.append(";");
-        sb.append(getContentListToString(settings.getCategorizationContentList()));
-        sb.append(";");
-        sb.append(settings.getDecorators().decorate(new SolrQuery(":")).toString());
-        return sb.toString();
-    }
-
-    private String getContentListToString(final ContentList list) throws CMException {
-        final StringBuilder sb = new StringBuilder("[");
-        for (int idx = 0; idx < list.size(); idx++) {
-            if (idx > 0) {
-                sb.append(",");
-            }
-            final ContentId id = list.getEntry(idx).getReferredContentId();
-            sb.append(id.getContentIdString());
-        }
-        sb.append("]");
-        return sb.toString();
-    }
-
-    private List<ContentId> getResults(final SearchClient searchClient,
-                                       final SiteSettingsPolicy settings,
-                                       final Policy policy) throws CMException {
-
-        final ContentId contentId = policy.getContentId().getContentId();
-        try {
-            final Metadata metadata = searchUtil.filterMetadata(settings, getMetadata(policy));
-            if (shouldCalculateRelated(policy, metadata)) {
-                final String inputTemplate = policy.getInputTemplate().getExternalId().getExternalId();
-                final SolrQuery query = searchUtil.getSolrQuery(contentId, inputTemplate, metadata, settings.getMinimumMatch());
-                if (query != null) {
-                    final int maxResults = settings.getMaxResults();
-                    final WithDecorators decorators = settings.getDecorators();
-                    excludeRelated((ContentPolicy) policy, decorators);
-                    return performSearch(searchClient, policy.getCMServer(), decorators.decorate(query), maxResults);
-                }
-            }
-        } catch (CMRuntimeException e) {
-            LOGGER.log(Level.FINE, "cannot find metadata aware from " + contentId.getContentIdString() + ": " + e.getMessage(), e);
+    /**
+     * The part of the cache key which identifies the content.
+     *
+     * @param policy the content.
+     * @return the key.
+     * @deprecated the key is calculated before the content is loaded, so this method is no
+     *             longer called: override {@link #getIdsCacheKey(ContentId)} instead.
+     */
+    @Deprecated
+    protected String getIdsCacheKey(final Policy policy) {
+        return getIdsCacheKey(policy.getContentId());
+    }
+
+    protected SearchClient getSearchClient(final Application application) {
+        final SearchClientLookup lookup = searchClientLookup;
+        if (lookup != null && lookup.application == application) {
+            return lookup.searchClient;
         }
-        return Lists.newArrayList();
+        final SearchClient searchClient = (SearchClient) application.getApplicationComponent(SolrSearchClient.DEFAULT_COMPOUND_NAME);
+        searchClientLookup = new SearchClientLookup(application, searchClient);
+        return searchClient;
+    }
+
+    /**
+     * Override to share the related lists in a different way, a null coalescer
+     * disables the sharing.
+     *
+     * @return the coalescer or null.
+     */
+    protected RelatedCoalescer getCoalescer() {
+        return RelatedService.COALESCER;
+    }
+
+    protected RelatedItemCache getItemCache() {
+        return RelatedItemCache.getInstance();
+    }
+
+    protected PrecomputedStore getPrecomputedStore() {
+        return PrecomputedStore.getDefault();
+    }
+
+    /**
+     * The cache of the contents without related contents, a null cache disables it.
+     *
+     * @return the cache or null.
+     */
+    protected NegativeRelatedCache getNegativeCache() {
+        return RelatedService.NEGATIVE_CACHE;
     }
 
     protected boolean shouldCalculateRelated(final Policy policy, final Metadata metadata) throws CMException {
@@ -173,8 +252,18 @@ public class AutoRelatedController extends RenderControllerBase {
         return searchUtil.getMetadata(policy);
     }
 
+    /**
+     * Override to exclude more contents from the related list, see
+     * {@link RelatedCalculator#excludeRelated(ContentPolicy, WithDecorators)}.
+     *
+     * The default does nothing: the related contents are no longer excluded by
+     * the query but dropped from the results, so calling it from an override
+     * adds nothing to the query.
+     *
+     * @param policy the content.
+     * @param decorators the decorators of the query.
+     */
     protected void excludeRelated(final ContentPolicy policy, final WithDecorators decorators) {
-        searchUtil.excludeRelated(policy, decorators);
     }
 
     protected SiteSettingsPolicy getSiteSettingsPolicy(final TopModel m) throws CMException {
@@ -185,34 +274,6 @@ public class AutoRelatedController extends RenderControllerBase {
         return null;
     }
 
-    private List<ContentId> performSearch(final SearchClient searchClient,
-                                          final PolicyCMServer cmServer,
-                                          final SolrQuery query,
-                                          final int maxResults) {
-        final List <ContentId> results = Lists.newArrayList();
-
-        final SearchResult searchResult = searchClient.search(query, 100 + maxResults);
-        for (final SearchResultPage page : searchResult) {
-            final List<ContentId> hits = page.getHits();
-            for (final ContentId id : hits) {
-                try {
-                    if (cmServer.contentExists(id)) {
-                        if (!results.contains(id)) {
-                            results.add(id);
-                        }
-                    }
-                } catch (CMException e) {
-                    LOGGER.log(Level.WARNING, "cannot check content " + id.getContentIdString() + ": " + e.getMessage());
-                }
-                if (results.size() >= maxResults) {
-                    return results;
-                }
-            }
-        }
-
-        return results;
-    }
-
     private ContentList getContentListModel(final ContentList contentList) {
         SiteEngineApplication application = SiteEngine.getApplication();
         if (application != null) {
@@ -227,4 +288,15 @@ public class AutoRelatedController extends RenderControllerBase {
         return contentList;
     }
 
+    private static class SearchClientLookup {
+
+        private final Application application;
+        private final SearchClient searchClient;
+
+        SearchClientLookup(final Application application, final SearchClient searchClient) {
+            this.application = application;
+            this.searchClient = searchClient;
+        }
+    }
+
 }
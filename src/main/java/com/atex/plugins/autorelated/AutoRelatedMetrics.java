@@ -0,0 +1,305 @@
+package com.atex.plugins.autorelated;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+
+/**
+ * Counters of the related contents calculation.
+ *
+ * Counters are {@link LongAdder}s so they can be updated from the render
+ * threads without contention, they are exposed through JMX with the name
+ * <code>com.atex.plugins.autorelated:type=AutoRelatedMetrics</code>.
+ *
+ * Solr queries slower than <code>autorelated.slowQueryMs</code> (default 1000ms)
+ * are logged with their query.
+ */
+public class AutoRelatedMetrics implements AutoRelatedMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(AutoRelatedMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "com.atex.plugins.autorelated:type=AutoRelatedMetrics";
+
+    private static final long[] LATENCY_BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000 };
+
+    private static final AutoRelatedMetrics INSTANCE = register(new AutoRelatedMetrics());
+
+    private final LongAdder calculations = new LongAdder();
+    private final LongAdder shortCircuits = new LongAdder();
+    private final LongAdder solrQueries = new LongAdder();
+    private final LongAdder solrTotalMillis = new LongAdder();
+    private final LongAdder[] solrLatency = new LongAdder[LATENCY_BUCKETS.length + 1];
+    private final LongAdder rowsFetched = new LongAdder();
+    private final LongAdder rowsKept = new LongAdder();
+    private final LongAdder contentExistsCalls = new LongAdder();
+    private final LongAdder metadataFilterCount = new LongAdder();
+    private final LongAdder metadataFilterNanos = new LongAdder();
+    private final LongAdder slowQueries = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder sharedWaitTimeouts = new LongAdder();
+    private final LongAdder searchTimeouts = new LongAdder();
+    private final LongAdder searchesRejected = new LongAdder();
+
+    private volatile long slowQueryThresholdMillis = Long.getLong("autorelated.slowQueryMs", 1000);
+    private volatile RelatedIdsCache idsCache;
+
+    public AutoRelatedMetrics() {
+        for (int idx = 0; idx < solrLatency.length; idx++) {
+            solrLatency[idx] = new LongAdder();
+        }
+    }
+
+    public static AutoRelatedMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * The cache whose statistics are exposed as cache hits and misses.
+     *
+     * @param idsCache the cache.
+     */
+    public void setIdsCache(final RelatedIdsCache idsCache) {
+        this.idsCache = idsCache;
+    }
+
+    public void calculation() {
+        calculations.increment();
+    }
+
+    public void shortCircuit() {
+        shortCircuits.increment();
+    }
+
+    public void metadataFilter(final long nanos) {
+        metadataFilterCount.increment();
+        metadataFilterNanos.add(nanos);
+    }
+
+    public void sharedHit() {
+        sharedHits.increment();
+    }
+
+    public void sharedWaitTimeout() {
+        sharedWaitTimeouts.increment();
+    }
+
+    public void searchTimeout() {
+        searchTimeouts.increment();
+    }
+
+    public void searchRejected() {
+        searchesRejected.increment();
+    }
+
+    /**
+     * Record a related search.
+     *
+     * @param query the query, only used when the search is slow.
+     * @param searchMillis the time spent in solr.
+     * @param totalMillis the time spent in the whole search, including the contents check.
+     * @param fetched the number of hits read from solr.
+     * @param kept the number of hits kept in the related list.
+     * @param existsCalls the number of contentExists calls.
+     */
+    public void search(final Object query,
+                       final long searchMillis,
+                       final long totalMillis,
+                       final int fetched,
+                       final int kept,
+                       final int existsCalls) {
+        solrQueries.increment();
+        solrTotalMillis.add(searchMillis);
+        solrLatency[getBucket(searchMillis)].increment();
+        rowsFetched.add(fetched);
+        rowsKept.add(kept);
+        contentExistsCalls.add(existsCalls);
+        if (totalMillis >= slowQueryThresholdMillis) {
+            slowQueries.increment();
+            LOGGER.log(Level.WARNING, "slow related search: " + totalMillis + "ms (solr " + searchMillis + "ms, "
+                    + fetched + " rows fetched, " + kept + " kept, " + existsCalls + " contentExists calls), query: " + query);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCacheHits() {
+        final Map<String, Long> hits = Maps.newTreeMap();
+        for (final Map.Entry<String, CacheStats> entry : getCacheStats().entrySet()) {
+            hits.put(entry.getKey(), entry.getValue().hitCount());
+        }
+        return hits;
+    }
+
+    @Override
+    public Map<String, Long> getCacheMisses() {
+        final Map<String, Long> misses = Maps.newTreeMap();
+        for (final Map.Entry<String, CacheStats> entry : getCacheStats().entrySet()) {
+            misses.put(entry.getKey(), entry.getValue().missCount());
+        }
+        return misses;
+    }
+
+    @Override
+    public long getCalculations() {
+        return calculations.sum();
+    }
+
+    @Override
+    public long getShortCircuits() {
+        return shortCircuits.sum();
+    }
+
+    @Override
+    public long getSolrQueries() {
+        return solrQueries.sum();
+    }
+
+    @Override
+    public long getSolrTotalMillis() {
+        return solrTotalMillis.sum();
+    }
+
+    @Override
+    public Map<String, Long> getSolrLatencyHistogram() {
+        final Map<String, Long> histogram = Maps.newLinkedHashMap();
+        for (int idx = 0; idx < LATENCY_BUCKETS.length; idx++) {
+            histogram.put("<=" + LATENCY_BUCKETS[idx] + "ms", solrLatency[idx].sum());
+        }
+        histogram.put(">" + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1] + "ms", solrLatency[LATENCY_BUCKETS.length].sum());
+        return histogram;
+    }
+
+    @Override
+    public long getRowsFetched() {
+        return rowsFetched.sum();
+    }
+
+    @Override
+    public Map<String, Double> getDropRates() {
+        return SolrRelatedEngine.getDefaultFetchSize().getDropRates();
+    }
+
+    @Override
+    public long getRowsKept() {
+        return rowsKept.sum();
+    }
+
+    @Override
+    public long getContentExistsCalls() {
+        return contentExistsCalls.sum();
+    }
+
+    @Override
+    public long getMetadataFilterCount() {
+        return metadataFilterCount.sum();
+    }
+
+    @Override
+    public long getMetadataFilterTotalMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(metadataFilterNanos.sum());
+    }
+
+    @Override
+    public long getSlowQueries() {
+        return slowQueries.sum();
+    }
+
+    @Override
+    public long getSharedHits() {
+        return sharedHits.sum();
+    }
+
+    @Override
+    public long getSharedWaitTimeouts() {
+        return sharedWaitTimeouts.sum();
+    }
+
+    @Override
+    public long getSearchTimeouts() {
+        return searchTimeouts.sum();
+    }
+
+    @Override
+    public long getSearchesRejected() {
+        return searchesRejected.sum();
+    }
+
+    @Override
+    public Map<String, String> getCircuitBreakerStates() {
+        return SolrRelatedEngine.getDefaultCircuitBreaker().getStates();
+    }
+
+    @Override
+    public long getSlowQueryThresholdMillis() {
+        return slowQueryThresholdMillis;
+    }
+
+    @Override
+    public void setSlowQueryThresholdMillis(final long millis) {
+        this.slowQueryThresholdMillis = millis;
+    }
+
+    @Override
+    public void reset() {
+        calculations.reset();
+        shortCircuits.reset();
+        solrQueries.reset();
+        solrTotalMillis.reset();
+        for (final LongAdder adder : solrLatency) {
+            adder.reset();
+        }
+        rowsFetched.reset();
+        rowsKept.reset();
+        contentExistsCalls.reset();
+        metadataFilterCount.reset();
+        metadataFilterNanos.reset();
+        slowQueries.reset();
+        sharedHits.reset();
+        sharedWaitTimeouts.reset();
+        searchTimeouts.reset();
+        searchesRejected.reset();
+    }
+
+    private Map<String, CacheStats> getCacheStats() {
+        final RelatedIdsCache cache = idsCache;
+        if (cache != null) {
+            return cache.getStats();
+        }
+        return Maps.newHashMap();
+    }
+
+    private static int getBucket(final long millis) {
+        for (int idx = 0; idx < LATENCY_BUCKETS.length; idx++) {
+            if (millis <= LATENCY_BUCKETS[idx]) {
+                return idx;
+            }
+        }
+        return LATENCY_BUCKETS.length;
+    }
+
+    private static AutoRelatedMetrics register(final AutoRelatedMetrics metrics) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+
+            // after a redeploy the bean of the old webapp is still there.
+
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "cannot register " + OBJECT_NAME + ": " + e.getMessage(), e);
+        }
+        return metrics;
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link AutoRelatedMetrics}.
+ */
+public interface AutoRelatedMetricsMXBean {
+
+    /**
+     * Cache hits for every site settings id.
+     */
+    Map<String, Long> getCacheHits();
+
+    /**
+     * Cache misses for every site settings id.
+     */
+    Map<String, Long> getCacheMisses();
+
+    long getCalculations();
+
+    long getShortCircuits();
+
+    long getSolrQueries();
+
+    long getSolrTotalMillis();
+
+    /**
+     * Number of solr queries by latency bucket, the key is the upper bound of the bucket.
+     */
+    Map<String, Long> getSolrLatencyHistogram();
+
+    long getRowsFetched();
+
+    /**
+     * Moving average of the hits dropped by the related search, for every site.
+     */
+    Map<String, Double> getDropRates();
+
+    long getRowsKept();
+
+    long getContentExistsCalls();
+
+    long getMetadataFilterCount();
+
+    long getMetadataFilterTotalMicros();
+
+    long getSlowQueries();
+
+    /**
+     * Lists calculated by another node and taken from the shared store.
+     */
+    long getSharedHits();
+
+    /**
+     * Times a node gave up waiting for another node to calculate a list.
+     */
+    long getSharedWaitTimeouts();
+
+    /**
+     * Related searches which did not complete within the site latency budget.
+     */
+    long getSearchTimeouts();
+
+    /**
+     * Related searches not done because the circuit breaker of the site was open.
+     */
+    long getSearchesRejected();
+
+    /**
+     * State (CLOSED, OPEN or HALF_OPEN) of the circuit breaker of every site which had a failure.
+     */
+    Map<String, String> getCircuitBreakerStates();
+
+    long getSlowQueryThresholdMillis();
+
+    void setSlowQueryThresholdMillis(long millis);
+
+    void reset();
+
+}
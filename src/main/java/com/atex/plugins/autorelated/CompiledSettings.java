@@ -0,0 +1,195 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrQuery;
+
+import com.atex.plugins.autorelated.decorators.DecoratorChain;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.VersionedContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.collections.ContentList;
+
+/**
+ * The parts of a {@link SiteSettingsPolicy} that are expensive to compute
+ * and only change when the settings content itself changes.
+ *
+ * Instances are cached using the versioned content id of the settings, so a
+ * new version of the settings automatically gets a new instance while
+ * uncommitted versions (i.e. a preview in the editor) are always computed.
+ * The decorators and the categorization are read from other contents: an
+ * instance is evicted when one of the listed contents changes (see
+ * {@link #invalidate(ContentId)}) and, to pick up the changes of the contents
+ * they refer to, after <code>autorelated.compiledSettings.cacheTimeSec</code>
+ * seconds.
+ */
+public class CompiledSettings {
+
+    private static final long CACHE_TIME_SEC = Long.getLong("autorelated.compiledSettings.cacheTimeSec", 300);
+
+    private static final Cache<VersionedContentId, CompiledSettings> CACHE = CacheBuilder.newBuilder()
+                                                                                          .maximumSize(100)
+                                                                                          .expireAfterWrite(CACHE_TIME_SEC, TimeUnit.SECONDS)
+                                                                                          .build();
+
+    private final VersionedContentId settingsId;
+    private final String fingerprint;
+    private final long fingerprintHash;
+    private final DimensionFilter dimensionFilter;
+    private final DecoratorChain decorators;
+    private final Set<ContentId> references;
+
+    CompiledSettings(final VersionedContentId settingsId,
+                     final String fingerprint,
+                     final DimensionFilter dimensionFilter,
+                     final DecoratorChain decorators,
+                     final Set<ContentId> references) {
+        this.settingsId = settingsId;
+        this.fingerprint = fingerprint;
+        this.fingerprintHash = Hashing.murmur3_128().hashUnencodedChars(fingerprint).asLong();
+        this.dimensionFilter = dimensionFilter;
+        this.decorators = decorators;
+        this.references = references;
+    }
+
+    public static CompiledSettings of(final SiteSettingsPolicy settings) throws CMException {
+        if (!settings.isCommittedVersion()) {
+            return compile(settings);
+        }
+        try {
+            return CACHE.get(settings.getContentId(), new Callable<CompiledSettings>() {
+                @Override
+                public CompiledSettings call() throws Exception {
+                    return compile(settings);
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CMException) {
+                throw (CMException) e.getCause();
+            }
+            throw new CMException(e);
+        }
+    }
+
+    /**
+     * Evict the compiled settings which list the given content as a source or as a categorization.
+     *
+     * @param contentId the changed content.
+     */
+    public static void invalidate(final ContentId contentId) {
+        final ContentId id = contentId.getContentId();
+        for (final Map.Entry<VersionedContentId, CompiledSettings> entry : CACHE.asMap().entrySet()) {
+            if (entry.getValue().references.contains(id)) {
+                CACHE.invalidate(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * The id of the settings version this object has been compiled from.
+     *
+     * @return a not null id.
+     */
+    public VersionedContentId getSettingsId() {
+        return settingsId;
+    }
+
+    /**
+     * The key of the site these settings belongs to, it does not change between versions.
+     *
+     * @return a not null string.
+     */
+    public String getSiteKey() {
+        return settingsId.getContentId().getContentIdString();
+    }
+
+    /**
+     * A string which identify the settings used to calculate the related contents,
+     * two settings with the same fingerprint will give the same results.
+     *
+     * @return a not null string.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * A 64 bit hash of the {@link #getFingerprint()}.
+     *
+     * @return the hash.
+     */
+    public long getFingerprintHash() {
+        return fingerprintHash;
+    }
+
+    /**
+     * The filter of the dimensions configured in the categorization list.
+     *
+     * @return a not null filter.
+     */
+    public DimensionFilter getDimensionFilter() {
+        return dimensionFilter;
+    }
+
+    /**
+     * The decorators of the sources list, use it instead of {@link SiteSettingsPolicy#getDecorators()}
+     * since it does not resolve the decorator policies again and it cannot be modified.
+     *
+     * @return a not null decorator.
+     */
+    public DecoratorChain getDecorators() {
+        return decorators;
+    }
+
+    private static CompiledSettings compile(final SiteSettingsPolicy settings) throws CMException {
+        final DecoratorChain decorators = DecoratorChain.of(settings.getDecorators());
+        final Set<ContentId> references = Sets.newHashSet();
+        addReferences(references, settings.getSourcesContentList());
+        addReferences(references, settings.getCategorizationContentList());
+        final StringBuilder sb = new StringBuilder(settings.getContentId().getContentId().getContentIdString());
+        sb.append(";");
+        sb.append(settings.getMaxResults());
+        sb.append(";");
+        sb.append(settings.getMinimumMatch());
+        sb.append(";");
+        sb.append(settings.getMaxEntitiesPerDimension());
+        sb.append(";");
+        sb.append(getContentListToString(settings.getCategorizationContentList()));
+        sb.append(";");
+        sb.append(decorators.decorate(new SolrQuery(":")).toString());
+        return new CompiledSettings(
+                settings.getContentId(),
+                sb.toString(),
+                DimensionFilter.compile(settings),
+                decorators,
+                references);
+    }
+
+    private static void addReferences(final Set<ContentId> references, final ContentList list) throws CMException {
+        for (int idx = 0; idx < list.size(); idx++) {
+            references.add(list.getEntry(idx).getReferredContentId().getContentId());
+        }
+    }
+
+    private static String getContentListToString(final ContentList list) throws CMException {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int idx = 0; idx < list.size(); idx++) {
+            if (idx > 0) {
+                sb.append(",");
+            }
+            final ContentId id = list.getEntry(idx).getReferredContentId();
+            sb.append(id.getContentIdString());
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+
+}
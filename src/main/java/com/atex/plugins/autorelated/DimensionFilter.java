@@ -0,0 +1,77 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Collections;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.collections.ContentList;
+import com.polopoly.cm.policy.Policy;
+import com.polopoly.cm.policy.PolicyCMServer;
+import com.polopoly.metadata.Dimension;
+import com.polopoly.metadata.Metadata;
+import com.polopoly.metadata.MetadataDimension;
+
+/**
+ * Keeps only the dimensions configured in the categorization list of the
+ * site settings.
+ *
+ * The configured dimensions are resolved once, when the settings are
+ * compiled (see {@link CompiledSettings#getDimensionFilter()}), so filtering
+ * does not need to access the cm server.
+ */
+public class DimensionFilter {
+
+    private final Set<String> dimensionIds;
+
+    public DimensionFilter(final Set<String> dimensionIds) {
+        this.dimensionIds = Collections.unmodifiableSet(dimensionIds);
+    }
+
+    public static DimensionFilter compile(final SiteSettingsPolicy settings) throws CMException {
+        final Set<String> dimensionIds = Sets.newHashSet();
+        final PolicyCMServer cmServer = settings.getCMServer();
+        final ContentList contentList = settings.getCategorizationContentList();
+        for (int idx = 0; idx < contentList.size(); idx++) {
+            final ContentId contentId = contentList.getEntry(idx).getReferredContentId();
+            final Policy policy = cmServer.getPolicy(contentId);
+            if (policy instanceof MetadataDimension) {
+                final Dimension dimension = ((MetadataDimension) policy).getDimension();
+                if (dimension != null) {
+                    dimensionIds.add(dimension.getId());
+                }
+            }
+        }
+        return new DimensionFilter(dimensionIds);
+    }
+
+    /**
+     * The ids of the configured dimensions, when empty every dimension is allowed.
+     *
+     * @return a not null set.
+     */
+    public Set<String> getDimensionIds() {
+        return dimensionIds;
+    }
+
+    /**
+     * Return the metadata with only the configured dimensions.
+     *
+     * @param metadata the metadata.
+     * @return the given metadata if no dimension has been configured or a new one.
+     */
+    public Metadata filter(final Metadata metadata) {
+        if (dimensionIds.isEmpty()) {
+            return metadata;
+        }
+        final Metadata newMetadata = new Metadata();
+        for (final Dimension dimension : metadata.getDimensions()) {
+            if (dimensionIds.contains(dimension.getId())) {
+                newMetadata.addDimension(dimension);
+            }
+        }
+        return newMetadata;
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.VersionedContentId;
+import com.polopoly.metadata.Dimension;
+import com.polopoly.metadata.Entity;
+import com.polopoly.metadata.Metadata;
+
+/**
+ * A local table of how many contents use every entity, it is used to keep
+ * only the rarest (and so the most significant) entities of a heavily
+ * tagged content in the related query.
+ *
+ * The table is fed with the metadata of every content whose related list
+ * is calculated by this node, so it approximates the document frequency of
+ * the entities of the contents which are actually read. A content is counted
+ * once, a new version only moves the counts of the entities added or removed.
+ * It is bounded, the entities (and the contents) not seen for the longest
+ * time are forgotten first: a forgotten entity will look rare again and a
+ * forgotten content will be counted again.
+ */
+public class EntityFrequencies {
+
+    private static final int MAX_ENTRIES = Integer.getInteger("autorelated.entityFrequencies.maxEntries", 100000);
+
+    private static final EntityFrequencies INSTANCE = new EntityFrequencies();
+
+    private final Cache<String, AtomicInteger> frequencies;
+    private final Cache<ContentId, Observation> observations;
+
+    public EntityFrequencies() {
+        this(MAX_ENTRIES);
+    }
+
+    public EntityFrequencies(final int maxEntries) {
+        this.frequencies = CacheBuilder.newBuilder()
+                                       .maximumSize(maxEntries)
+                                       .build();
+        this.observations = CacheBuilder.newBuilder()
+                                        .maximumSize(maxEntries)
+                                        .build();
+    }
+
+    public static EntityFrequencies getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Count the entities of a content, a version already observed is not counted again.
+     *
+     * @param versionedId the content version.
+     * @param metadata the metadata of the content version.
+     */
+    public void observe(final VersionedContentId versionedId, final Metadata metadata) {
+        final ContentId contentId = versionedId.getContentId();
+        final Set<String> keys = Sets.newHashSet();
+        for (final Dimension dimension : metadata.getDimensions()) {
+            for (final Entity entity : dimension.getEntities()) {
+                keys.add(SearchUtil.getEntityKey(dimension.getId(), entity.getId()));
+            }
+        }
+        synchronized (observations) {
+            final Observation previous = observations.getIfPresent(contentId);
+            if (previous != null) {
+                if (previous.version == versionedId.getVersion()) {
+                    return;
+                }
+                for (final String key : Sets.difference(previous.keys, keys)) {
+                    final AtomicInteger count = frequencies.getIfPresent(key);
+                    if (count != null && count.get() > 0) {
+                        count.decrementAndGet();
+                    }
+                }
+            }
+            observations.put(contentId, new Observation(versionedId.getVersion(), keys));
+            for (final String key : keys) {
+                if (previous == null || !previous.keys.contains(key)) {
+                    getCount(key).incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of observed contents using the given entity.
+     *
+     * @param dimensionId the dimension.
+     * @param entityId the entity.
+     * @return the number of contents, 0 if the entity is not known.
+     */
+    public int getFrequency(final String dimensionId, final String entityId) {
+        final AtomicInteger count = frequencies.getIfPresent(SearchUtil.getEntityKey(dimensionId, entityId));
+        return (count != null) ? count.get() : 0;
+    }
+
+    /**
+     * Keep, for every dimension, only the given number of entities with the lowest frequency,
+     * the entities with the same frequency are taken in the order of their keys, so the
+     * selection does not depend on the order of the metadata. Unknown entities count as 0,
+     * the entities of a content are known once it has been observed.
+     *
+     * @param metadata the metadata.
+     * @param maxEntitiesPerDimension the number of entities to keep, 0 or less to keep all of them.
+     * @return the given metadata if no dimension has too many entities or a new one.
+     */
+    public Metadata selectRarest(final Metadata metadata, final int maxEntitiesPerDimension) {
+        if (maxEntitiesPerDimension <= 0 || !hasMoreEntities(metadata, maxEntitiesPerDimension)) {
+            return metadata;
+        }
+        final Metadata newMetadata = new Metadata();
+        for (final Dimension dimension : metadata.getDimensions()) {
+            final List<Entity> entities = dimension.getEntities();
+            if (entities.size() <= maxEntitiesPerDimension) {
+                newMetadata.addDimension(dimension);
+                continue;
+            }
+            final String dimensionId = dimension.getId();
+
+            // the frequencies are read once, they may change while sorting.
+
+            final int[] counts = new int[entities.size()];
+            final String[] keys = new String[entities.size()];
+            final List<Integer> order = Lists.newArrayListWithCapacity(entities.size());
+            for (int idx = 0; idx < counts.length; idx++) {
+                keys[idx] = SearchUtil.getEntityKey(dimensionId, entities.get(idx).getId());
+                counts[idx] = getFrequency(dimensionId, entities.get(idx).getId());
+                order.add(idx);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer o1, final Integer o2) {
+                    final int result = Integer.compare(counts[o1], counts[o2]);
+                    return (result != 0) ? result : keys[o1].compareTo(keys[o2]);
+                }
+            });
+            final List<Entity> rarest = Lists.newArrayListWithCapacity(maxEntitiesPerDimension);
+            for (final Integer idx : order.subList(0, maxEntitiesPerDimension)) {
+                rarest.add(entities.get(idx));
+            }
+            newMetadata.addDimension(new Dimension(
+                    dimensionId,
+                    dimension.getName(),
+                    dimension.isEnumerable(),
+                    rarest));
+        }
+        return newMetadata;
+    }
+
+    public long size() {
+        return frequencies.size();
+    }
+
+    private AtomicInteger getCount(final String key) {
+        final AtomicInteger count = frequencies.getIfPresent(key);
+        if (count != null) {
+            return count;
+        }
+        final AtomicInteger newCount = new AtomicInteger();
+        final AtomicInteger oldCount = frequencies.asMap().putIfAbsent(key, newCount);
+        return (oldCount != null) ? oldCount : newCount;
+    }
+
+    private static boolean hasMoreEntities(final Metadata metadata, final int maxEntitiesPerDimension) {
+        for (final Dimension dimension : metadata.getDimensions()) {
+            if (dimension.getEntities().size() > maxEntitiesPerDimension) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Observation {
+
+        private final int version;
+        private final Set<String> keys;
+
+        Observation(final int version, final Set<String> keys) {
+            this.version = version;
+            this.keys = keys;
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.atex.plugins.autorelated;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link SharedRelatedStore} backed by a directory, the directory may be
+ * a mount shared by the front nodes.
+ *
+ * Every list is a small binary file written to a temporary file and then
+ * atomically moved in place, a lease is a file created with an atomic
+ * create (it fails if the file already exists) and it is considered
+ * expired when it is older than the lease time.
+ *
+ * Expired lists are only removed when they are read, this store is meant
+ * as a stand-in for a real distributed store.
+ */
+public class FileSharedRelatedStore implements SharedRelatedStore {
+
+    private static final Logger LOGGER = Logger.getLogger(FileSharedRelatedStore.class.getName());
+
+    private static final int MAGIC = 0x41525353;
+
+    private final File dir;
+
+    public FileSharedRelatedStore(final File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public RelatedEntry get(final long key) {
+        final Path path = getPath(key, ".bin");
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.log(Level.WARNING, "invalid file " + path);
+                return null;
+            }
+            final long expires = in.readLong();
+            if (expires <= System.currentTimeMillis()) {
+                Files.deleteIfExists(path);
+                return null;
+            }
+            final long created = in.readLong();
+            final int size = in.readInt();
+            final int[] majors = new int[size];
+            final int[] minors = new int[size];
+            for (int idx = 0; idx < size; idx++) {
+                majors[idx] = in.readInt();
+                minors[idx] = in.readInt();
+            }
+            return new RelatedEntry(majors, minors, created);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot read " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void put(final long key, final RelatedEntry entry, final long ttl) {
+        final Path path = getPath(key, ".bin");
+        final Path tmp = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(entry.getCreated() + ttl);
+                out.writeLong(entry.getCreated());
+                out.writeInt(entry.size());
+                for (int idx = 0; idx < entry.size(); idx++) {
+                    out.writeInt(entry.getMajor(idx));
+                    out.writeInt(entry.getMinor(idx));
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot write " + path + ": " + e.getMessage());
+            delete(tmp);
+        }
+    }
+
+    @Override
+    public void remove(final Iterable<Long> keys) {
+        for (final long key : keys) {
+            delete(getPath(key, ".bin"));
+        }
+    }
+
+    @Override
+    public boolean tryLease(final long key, final long leaseTime) {
+        final Path path = getPath(key, ".lease");
+        try {
+            Files.createDirectories(path.getParent());
+            try {
+                Files.createFile(path);
+                return true;
+            } catch (FileAlreadyExistsException e) {
+
+                // the node holding the lease may be dead, an expired lease can be taken
+                // but only one node can succeed in creating the file again.
+
+                if (System.currentTimeMillis() - Files.getLastModifiedTime(path).toMillis() > leaseTime) {
+                    Files.deleteIfExists(path);
+                    Files.createFile(path);
+                    return true;
+                }
+            }
+        } catch (FileAlreadyExistsException | NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot lease " + path + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    @Override
+    public void releaseLease(final long key) {
+        delete(getPath(key, ".lease"));
+    }
+
+    private Path getPath(final long key, final String suffix) {
+        final String name = String.format("%016x", key);
+        return new File(new File(dir, name.substring(0, 2)), name + suffix).toPath();
+    }
+
+    private void delete(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "cannot delete " + path + ": " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.atex.plugins.autorelated;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A {@link SharedRelatedStore} which lives in the memory of a single jvm,
+ * it is only useful to test the coalescing on a single node.
+ */
+public class InMemorySharedRelatedStore implements SharedRelatedStore {
+
+    private final Cache<Long, Stored> entries;
+    private final ConcurrentMap<Long, Long> leases = new ConcurrentHashMap<>();
+
+    public InMemorySharedRelatedStore() {
+        this(10000);
+    }
+
+    public InMemorySharedRelatedStore(final int maxSize) {
+        this.entries = CacheBuilder.newBuilder()
+                                   .maximumSize(maxSize)
+                                   .build();
+    }
+
+    @Override
+    public RelatedEntry get(final long key) {
+        final Stored stored = entries.getIfPresent(key);
+        if (stored != null) {
+            if (stored.expires > System.currentTimeMillis()) {
+                return stored.entry;
+            }
+            entries.invalidate(key);
+        }
+        return null;
+    }
+
+    @Override
+    public void put(final long key, final RelatedEntry entry, final long ttl) {
+        entries.put(key, new Stored(entry, entry.getCreated() + ttl));
+    }
+
+    @Override
+    public void remove(final Iterable<Long> keys) {
+        entries.invalidateAll(keys);
+    }
+
+    @Override
+    public boolean tryLease(final long key, final long leaseTime) {
+        final long now = System.currentTimeMillis();
+        final Long expires = leases.putIfAbsent(key, now + leaseTime);
+        if (expires == null) {
+            return true;
+        }
+        return expires <= now && leases.replace(key, expires, now + leaseTime);
+    }
+
+    @Override
+    public void releaseLease(final long key) {
+        leases.remove(key);
+    }
+
+    private static class Stored {
+
+        private final RelatedEntry entry;
+        private final long expires;
+
+        Stored(final RelatedEntry entry, final long expires) {
+            this.entry = entry;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.policy.PolicyCMServer;
+
+/**
+ * Filters search hits down to the contents that still exist in the CM server.
+ *
+ * Hits are checked in chunks: every id of a chunk is checked in parallel on a
+ * small bounded executor, the results are then consumed in the original hit
+ * order so the ranking given by the search engine is preserved.
+ */
+public class LiveContentResolver {
+
+    private static final Logger LOGGER = Logger.getLogger(LiveContentResolver.class.getName());
+
+    private static final int THREADS = Integer.getInteger("autorelated.exists.threads", 4);
+    private static final int QUEUE_SIZE = Integer.getInteger("autorelated.exists.queueSize", 200);
+    private static final int MAX_CHUNK_SIZE = Integer.getInteger("autorelated.exists.chunkSize", 20);
+
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    private final ExecutorService executor;
+    private final int maxChunkSize;
+
+    public LiveContentResolver() {
+        this(EXECUTOR, MAX_CHUNK_SIZE);
+    }
+
+    public LiveContentResolver(final ExecutorService executor, final int maxChunkSize) {
+        this.executor = executor;
+        this.maxChunkSize = Math.max(1, maxChunkSize);
+    }
+
+    /**
+     * Return at most maxResults existing content ids taken from the given hits.
+     *
+     * @param cmServer the cm server used to check the contents.
+     * @param hits the search hits, in ranking order.
+     * @param maxResults the maximum number of ids to return.
+     * @return the resolved ids together with the number of cm calls made.
+     */
+    public Result resolve(final PolicyCMServer cmServer, final Iterator<ContentId> hits, final int maxResults) {
+        final Set<ContentId> seen = new LinkedHashSet<>();
+        final Set<ContentId> results = new LinkedHashSet<>();
+        int calls = 0;
+
+        while (results.size() < maxResults && hits.hasNext()) {
+
+            // we do not need to check more than the missing results
+            // but we do not want to pay one round trip for every id either.
+
+            final int chunkSize = Math.min(maxChunkSize, Math.max(maxResults - results.size(), 2));
+            final List<ContentId> chunk = Lists.newArrayListWithCapacity(chunkSize);
+            while (chunk.size() < chunkSize && hits.hasNext()) {
+                final ContentId id = hits.next();
+                if (seen.add(id)) {
+                    chunk.add(id);
+                }
+            }
+            calls += chunk.size();
+            for (final ContentId id : checkChunk(cmServer, chunk)) {
+                results.add(id);
+                if (results.size() >= maxResults) {
+                    break;
+                }
+            }
+        }
+        return new Result(Lists.newArrayList(results), calls);
+    }
+
+    private List<ContentId> checkChunk(final PolicyCMServer cmServer, final List<ContentId> chunk) {
+        final List<ContentId> existing = Lists.newArrayListWithCapacity(chunk.size());
+        if (chunk.size() == 1) {
+            final ContentId id = chunk.get(0);
+            if (contentExists(cmServer, id)) {
+                existing.add(id);
+            }
+            return existing;
+        }
+        final List<Future<Boolean>> futures = Lists.newArrayListWithCapacity(chunk.size());
+        for (final ContentId id : chunk) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return contentExists(cmServer, id);
+                }
+            }));
+        }
+        for (int idx = 0; idx < chunk.size(); idx++) {
+            try {
+                if (futures.get(idx).get()) {
+                    existing.add(chunk.get(idx));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.log(Level.WARNING, "interrupted while checking contents");
+                break;
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "cannot check content " + chunk.get(idx).getContentIdString() + ": " + e.getMessage());
+            }
+        }
+        return existing;
+    }
+
+    private boolean contentExists(final PolicyCMServer cmServer, final ContentId id) {
+        try {
+            return cmServer.contentExists(id);
+        } catch (CMException e) {
+            LOGGER.log(Level.WARNING, "cannot check content " + id.getContentIdString() + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static ExecutorService createExecutor() {
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                THREADS,
+                THREADS,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "autorelated-exists-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+
+                // when the pool is saturated the render thread will do the check itself.
+
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * The outcome of a {@link #resolve(PolicyCMServer, Iterator, int)} call.
+     */
+    public static class Result {
+
+        private final List<ContentId> ids;
+        private final int existsCalls;
+
+        public Result(final List<ContentId> ids, final int existsCalls) {
+            this.ids = ids;
+            this.existsCalls = existsCalls;
+        }
+
+        public List<ContentId> getIds() {
+            return ids;
+        }
+
+        public int getExistsCalls() {
+            return existsCalls;
+        }
+    }
+
+}
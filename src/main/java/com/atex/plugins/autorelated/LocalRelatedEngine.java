@@ -0,0 +1,551 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.solr.client.solrj.SolrQuery;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.event.ContentEvent;
+import com.polopoly.cm.event.ContentListener;
+import com.polopoly.cm.policy.ContentPolicy;
+import com.polopoly.cm.policy.Policy;
+import com.polopoly.cm.policy.PolicyCMServer;
+import com.polopoly.metadata.Metadata;
+import com.polopoly.search.solr.SearchClient;
+import com.polopoly.search.solr.SearchResult;
+import com.polopoly.search.solr.SearchResultPage;
+
+/**
+ * Find the related contents using an in memory inverted index, no remote
+ * search is done once the index has been built.
+ *
+ * Every site has its own index, it maps every entity (see {@link SearchUtil#getEntityKey(String, String)})
+ * to the contents of the site tagged with it, only the contents found by the site
+ * decorators (see {@link CompiledSettings#getDecorators()}) are indexed. Candidates
+ * are scored like the solr query does: the sum of the weights (the rarer the entity
+ * the higher the weight) of the matching entities multiplied by the same publishing
+ * date decay used in {@link SearchUtil}.
+ *
+ * The index of a site is built with {@link #indexAll(PolicyCMServer, SearchClient, SiteSettingsPolicy)}
+ * and it is kept up to date listening to the cm content events: a changed content
+ * belongs to a site when it is already in its index or when its security parent is
+ * the parent of an indexed content, so no search is done for an event. Since this does
+ * not see the contents moved or created in other parents, the index of a site is rebuilt
+ * in background every <code>autorelated.local.reindexSec</code> seconds, on its own
+ * thread, and it replaces the old one (with the changes seen meanwhile) when complete.
+ */
+public class LocalRelatedEngine implements RelatedEngine, ContentListener {
+
+    private static final Logger LOGGER = Logger.getLogger(LocalRelatedEngine.class.getName());
+
+    private static final LocalRelatedEngine INSTANCE = new LocalRelatedEngine();
+
+    // same values used by the solr boost function, see SearchUtil.
+
+    private static final double DATE_DECAY = 6.43e-11;
+    private static final int PAGE_SIZE = 500;
+    private static final long REINDEX_TIME = TimeUnit.SECONDS.toMillis(Long.getLong("autorelated.local.reindexSec", 3600));
+    private static final String PUBLISHING_DATE_COMPONENT = "publishingDateTime";
+
+    private final SearchUtil searchUtil = new SearchUtil();
+    private final ConcurrentMap<String, SiteIndex> sites = Maps.newConcurrentMap();
+    private final AtomicBoolean registered = new AtomicBoolean(false);
+    private final Set<String> indexingSites = Sets.newConcurrentHashSet();
+    private final ConcurrentMap<String, Set<ContentId>> changedWhileIndexing = Maps.newConcurrentMap();
+    private final ExecutorService executor;
+    private final ExecutorService indexExecutor;
+
+    private volatile PolicyCMServer cmServer;
+
+    public LocalRelatedEngine() {
+        this.executor = createExecutor("autorelated-local-events", 10000);
+        this.indexExecutor = createExecutor("autorelated-local-index", 100);
+    }
+
+    public static LocalRelatedEngine getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public List<ContentId> findRelated(final RelatedRequest request) {
+        final SiteIndex index = sites.get(request.getSiteKey());
+        final List<String> entities = searchUtil.getEntityKeys(request.getMetadata());
+        if (index == null || entities.isEmpty() || request.getMaxResults() <= 0) {
+            return Lists.newArrayList();
+        }
+        final ContentId self = (request.getContentId() != null) ? request.getContentId().getContentId() : null;
+        final Set<ContentId> excluded = request.getExcludedIds();
+        final int required = getRequiredMatches(request.getMinimumMatch(), entities.size());
+        final long now = System.currentTimeMillis();
+
+        final Map<Doc, Score> scores = Maps.newHashMap();
+        index.lock.readLock().lock();
+        try {
+            final int total = index.docs.size();
+            for (final String entity : entities) {
+                final Set<Doc> posting = index.postings.get(entity);
+                if (posting == null) {
+                    continue;
+                }
+                final double weight = Math.log(1 + ((double) total / posting.size()));
+                for (final Doc doc : posting) {
+                    if (doc.id.equals(self) || excluded.contains(doc.id) || !doc.inputTemplate.equals(request.getInputTemplate())) {
+                        continue;
+                    }
+                    Score score = scores.get(doc);
+                    if (score == null) {
+                        score = new Score(doc);
+                        scores.put(doc, score);
+                    }
+                    score.matches++;
+                    score.value += weight;
+                }
+            }
+        } finally {
+            index.lock.readLock().unlock();
+        }
+
+        final PriorityQueue<Score> top = new PriorityQueue<>(request.getMaxResults() + 1, new Comparator<Score>() {
+            @Override
+            public int compare(final Score o1, final Score o2) {
+                return Double.compare(o1.value, o2.value);
+            }
+        });
+        for (final Score score : scores.values()) {
+            if (score.matches < required) {
+                continue;
+            }
+            final long age = Math.max(0, now - score.doc.publishingDate);
+            score.value = score.value / (1 + DATE_DECAY * age);
+            top.add(score);
+            if (top.size() > request.getMaxResults()) {
+                top.poll();
+            }
+        }
+        final List<ContentId> results = Lists.newArrayListWithCapacity(top.size());
+        while (!top.isEmpty()) {
+            results.add(top.poll().doc.id);
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    /**
+     * Add (or replace) a content in the index of a site, the caller must have checked
+     * that the content matches the site decorators.
+     *
+     * @param siteKey the site (see {@link CompiledSettings#getSiteKey()}), it must have been indexed.
+     * @param contentId the content.
+     * @param inputTemplate the external id of the content input template.
+     * @param metadata the content metadata.
+     * @param publishingDate the publishing date in milliseconds.
+     */
+    public void index(final String siteKey, final ContentId contentId, final String inputTemplate, final Metadata metadata, final long publishingDate) {
+        final SiteIndex index = sites.get(siteKey);
+        if (index != null) {
+            index.add(createDoc(contentId, null, inputTemplate, metadata, publishingDate));
+        }
+    }
+
+    /**
+     * Remove a content from the index of every site.
+     *
+     * @param contentId the content.
+     */
+    public void remove(final ContentId contentId) {
+        for (final SiteIndex index : sites.values()) {
+            index.remove(contentId.getContentId());
+        }
+    }
+
+    /**
+     * Return the number of indexed contents of a site.
+     *
+     * @param siteKey the site.
+     * @return the number of contents, 0 if the site has not been indexed.
+     */
+    public int size(final String siteKey) {
+        final SiteIndex index = sites.get(siteKey);
+        return (index != null) ? index.size() : 0;
+    }
+
+    /**
+     * Index all the contents of the site (the ones found with the site decorators) and
+     * start listening to the content events to keep the index up to date. The new index
+     * replaces the previous one of the site only when it is complete.
+     *
+     * @param cmServer the cm server.
+     * @param searchClient the search client used to find the contents.
+     * @param settings the site settings.
+     * @return the number of indexed contents.
+     * @throws CMException if the settings cannot be read.
+     */
+    public int indexAll(final PolicyCMServer cmServer, final SearchClient searchClient, final SiteSettingsPolicy settings) throws CMException {
+        return indexAll(cmServer, searchClient, CompiledSettings.of(settings));
+    }
+
+    int indexAll(final PolicyCMServer cmServer, final SearchClient searchClient, final CompiledSettings compiled) {
+        listenTo(cmServer);
+        final String siteKey = compiled.getSiteKey();
+        final Set<ContentId> changed = Sets.newConcurrentHashSet();
+        changedWhileIndexing.put(siteKey, changed);
+        try {
+            final SiteIndex index = new SiteIndex(compiled);
+            final SolrQuery query = compiled.getDecorators().decorate(new SolrQuery("*:*"));
+            final SearchResult searchResult = searchClient.search(query, PAGE_SIZE);
+            for (final SearchResultPage page : searchResult) {
+                for (final ContentId id : page.getHits()) {
+                    final Doc doc = loadDoc(cmServer, id);
+                    if (doc != null) {
+                        index.add(doc);
+                    }
+                }
+            }
+            sites.put(siteKey, index);
+            LOGGER.log(Level.INFO, "indexed " + index.size() + " contents of " + siteKey);
+            return index.size();
+        } finally {
+            changedWhileIndexing.remove(siteKey, changed);
+
+            // the events processed while the index was built went to the old index,
+            // they are processed again so the new index sees them too.
+
+            for (final ContentId contentId : changed) {
+                update(cmServer, contentId);
+            }
+        }
+    }
+
+    /**
+     * Make sure the contents of the site have been indexed, the first call for a site
+     * starts the indexing in background. An index older than <code>autorelated.local.reindexSec</code>
+     * is rebuilt in background while it keeps being used, an index built with different
+     * settings is not used until it has been rebuilt.
+     *
+     * @param cmServer the cm server.
+     * @param searchClient the search client used to find the contents.
+     * @param settings the site settings.
+     * @return true if the site has been indexed and the engine can be used.
+     */
+    public boolean ensureIndexed(final PolicyCMServer cmServer, final SearchClient searchClient, final SiteSettingsPolicy settings) {
+        final CompiledSettings compiled;
+        try {
+            compiled = CompiledSettings.of(settings);
+        } catch (CMException e) {
+            LOGGER.log(Level.FINE, "cannot read the settings: " + e.getMessage());
+            return false;
+        }
+        final String siteKey = compiled.getSiteKey();
+        final SiteIndex index = sites.get(siteKey);
+        final boolean current = (index != null) && index.fingerprintHash == compiled.getFingerprintHash();
+        if (current && (System.currentTimeMillis() - index.created) < REINDEX_TIME) {
+            return true;
+        }
+        if (indexingSites.add(siteKey)) {
+            try {
+                indexExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            indexAll(cmServer, searchClient, settings);
+                        } catch (CMException | RuntimeException e) {
+                            LOGGER.log(Level.SEVERE, "cannot index " + siteKey + ": " + e.getMessage(), e);
+                        } finally {
+                            indexingSites.remove(siteKey);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                indexingSites.remove(siteKey);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Start listening to the events of the given cm server, only the first call has effect.
+     *
+     * @param cmServer the cm server.
+     */
+    public void listenTo(final PolicyCMServer cmServer) {
+        if (registered.compareAndSet(false, true)) {
+            this.cmServer = cmServer;
+            cmServer.addContentListener(this);
+        }
+    }
+
+    @Override
+    public void contentChanged(final ContentEvent event) {
+        final PolicyCMServer server = cmServer;
+        final ContentId eventId = event.getContentId();
+        if (server == null || eventId == null) {
+            return;
+        }
+        final ContentId contentId = eventId.getContentId();
+        for (final Set<ContentId> changed : changedWhileIndexing.values()) {
+            changed.add(contentId);
+        }
+        update(server, contentId);
+    }
+
+    /**
+     * Return the publishing date of the content, the value of the publishing date field or,
+     * when the content does not have it, the commit date of the version.
+     *
+     * @param policy the content.
+     * @return the date in milliseconds.
+     * @throws CMException if the content cannot be read.
+     */
+    protected long getPublishingDate(final Policy policy) throws CMException {
+        final ContentPolicy contentPolicy = (ContentPolicy) policy;
+        final String value = contentPolicy.getComponent(PUBLISHING_DATE_COMPONENT, "value");
+        if (!Strings.isNullOrEmpty(value)) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.FINE, "invalid publishing date " + value + " in " + policy.getContentId().getContentIdString());
+            }
+        }
+        return contentPolicy.getContent().getVersionInfo().getVersionCommitDate();
+    }
+
+    private void update(final PolicyCMServer cmServer, final ContentId contentId) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Doc doc = loadDoc(cmServer, contentId);
+                    for (final SiteIndex index : sites.values()) {
+                        if (doc != null && index.matches(doc)) {
+                            index.add(doc);
+                        } else {
+                            index.remove(contentId);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.WARNING, "too many content events, the index of " + contentId.getContentIdString() + " may be stale");
+        }
+    }
+
+    private Doc loadDoc(final PolicyCMServer cmServer, final ContentId contentId) {
+        try {
+            if (!cmServer.contentExists(contentId)) {
+                return null;
+            }
+            final Policy policy = cmServer.getPolicy(contentId);
+            final Metadata metadata = searchUtil.getMetadata(policy);
+            if (!searchUtil.hasMetadata(metadata)) {
+                return null;
+            }
+            final String inputTemplate = policy.getInputTemplate().getExternalId().getExternalId();
+            final ContentId parentId = policy.getContent().getSecurityParentId();
+            return createDoc(contentId, parentId, inputTemplate, metadata, getPublishingDate(policy));
+        } catch (CMException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "cannot index " + contentId.getContentIdString() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private Doc createDoc(final ContentId contentId,
+                          final ContentId parentId,
+                          final String inputTemplate,
+                          final Metadata metadata,
+                          final long publishingDate) {
+        final List<String> entities = searchUtil.getEntityKeys(metadata);
+        return new Doc(
+                contentId.getContentId(),
+                (parentId != null) ? parentId.getContentId() : null,
+                inputTemplate,
+                publishingDate,
+                entities.toArray(new String[entities.size()]));
+    }
+
+    private static ExecutorService createExecutor(final String name, final int queueSize) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                1, 1,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Return the number of entities that must match, see the "mm" parameter of the
+     * dismax query parser, only the simple integer and percentage forms are supported.
+     */
+    static int getRequiredMatches(final String minimumMatch, final int clauses) {
+        final String mm = (minimumMatch != null) ? minimumMatch.trim() : "";
+        if (mm.isEmpty()) {
+            return 1;
+        }
+        try {
+            int required;
+            if (mm.endsWith("%")) {
+                final int percent = Integer.parseInt(mm.substring(0, mm.length() - 1));
+                required = (int) Math.floor(clauses * Math.abs(percent) / 100.0);
+                if (percent < 0) {
+                    required = clauses - required;
+                }
+            } else {
+                required = Integer.parseInt(mm);
+                if (required < 0) {
+                    required = clauses + required;
+                }
+            }
+            return Math.max(1, Math.min(clauses, required));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.FINE, "unsupported minimum match " + mm);
+        }
+        return 1;
+    }
+
+    private static class SiteIndex {
+
+        private final long fingerprintHash;
+        private final long created = System.currentTimeMillis();
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<ContentId, Doc> docs = Maps.newHashMap();
+        private final Map<String, Set<Doc>> postings = Maps.newHashMap();
+        private final Multiset<ContentId> parents = HashMultiset.create();
+
+        SiteIndex(final CompiledSettings compiled) {
+            this.fingerprintHash = compiled.getFingerprintHash();
+        }
+
+        /**
+         * True if the content is already indexed or its parent is the parent of an indexed content.
+         */
+        boolean matches(final Doc doc) {
+            lock.readLock().lock();
+            try {
+                return docs.containsKey(doc.id) || (doc.parentId != null && parents.contains(doc.parentId));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void add(final Doc doc) {
+            lock.writeLock().lock();
+            try {
+                removeDoc(doc.id);
+                docs.put(doc.id, doc);
+                if (doc.parentId != null) {
+                    parents.add(doc.parentId);
+                }
+                for (final String entity : doc.entities) {
+                    Set<Doc> posting = postings.get(entity);
+                    if (posting == null) {
+                        posting = Sets.newHashSet();
+                        postings.put(entity, posting);
+                    }
+                    posting.add(doc);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(final ContentId id) {
+            lock.writeLock().lock();
+            try {
+                removeDoc(id);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return docs.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void removeDoc(final ContentId id) {
+            final Doc old = docs.remove(id);
+            if (old != null) {
+                if (old.parentId != null) {
+                    parents.remove(old.parentId);
+                }
+                for (final String entity : old.entities) {
+                    final Set<Doc> posting = postings.get(entity);
+                    if (posting != null) {
+                        posting.remove(old);
+                        if (posting.isEmpty()) {
+                            postings.remove(entity);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Doc {
+
+        private final ContentId id;
+        private final ContentId parentId;
+        private final String inputTemplate;
+        private final long publishingDate;
+        private final String[] entities;
+
+        Doc(final ContentId id,
+            final ContentId parentId,
+            final String inputTemplate,
+            final long publishingDate,
+            final String[] entities) {
+            this.id = id;
+            this.parentId = parentId;
+            this.inputTemplate = inputTemplate;
+            this.publishingDate = publishingDate;
+            this.entities = entities;
+        }
+    }
+
+    private static class Score {
+
+        private final Doc doc;
+        private int matches;
+        private double value;
+
+        Score(final Doc doc) {
+            this.doc = doc;
+        }
+    }
+
+}
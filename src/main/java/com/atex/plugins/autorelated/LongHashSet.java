@@ -0,0 +1,147 @@
+package com.atex.plugins.autorelated;
+
+/**
+ * A set of primitive longs backed by an open addressing table with linear
+ * probing, it does not box the values and it costs 8 bytes per slot.
+ *
+ * Zero is used to mark the empty slots, so it cannot be stored. The class
+ * is not thread safe.
+ */
+public class LongHashSet {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIN_TABLE_SIZE = 4;
+
+    private long[] table;
+    private int size;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    public LongHashSet(final int expectedSize) {
+        table = new long[tableSize(expectedSize)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(final long value) {
+        if (value == 0) {
+            return false;
+        }
+        final int mask = table.length - 1;
+        int idx = index(value, mask);
+        while (table[idx] != 0) {
+            if (table[idx] == value) {
+                return true;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param value the value, it must not be zero.
+     * @return true if the value has been added.
+     */
+    public boolean add(final long value) {
+        if (value == 0) {
+            throw new IllegalArgumentException("zero cannot be stored");
+        }
+        if ((size + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        final int mask = table.length - 1;
+        int idx = index(value, mask);
+        while (table[idx] != 0) {
+            if (table[idx] == value) {
+                return false;
+            }
+            idx = (idx + 1) & mask;
+        }
+        table[idx] = value;
+        size++;
+        return true;
+    }
+
+    public boolean remove(final long value) {
+        if (value == 0) {
+            return false;
+        }
+        final int mask = table.length - 1;
+        int idx = index(value, mask);
+        while (table[idx] != value) {
+            if (table[idx] == 0) {
+                return false;
+            }
+            idx = (idx + 1) & mask;
+        }
+
+        // shift back the following entries of the run so lookups do not
+        // stop at the hole we are leaving.
+
+        int hole = idx;
+        int next = (hole + 1) & mask;
+        while (table[next] != 0) {
+            final int home = index(table[next], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = 0;
+        size--;
+        return true;
+    }
+
+    /**
+     * Copy the values in a new array, in no particular order.
+     *
+     * @return a not null array.
+     */
+    public long[] toArray() {
+        final long[] values = new long[size];
+        int idx = 0;
+        for (final long value : table) {
+            if (value != 0) {
+                values[idx++] = value;
+            }
+        }
+        return values;
+    }
+
+    private void rehash(final int newLength) {
+        final long[] old = table;
+        table = new long[newLength];
+        size = 0;
+        for (final long value : old) {
+            if (value != 0) {
+                add(value);
+            }
+        }
+    }
+
+    private static int index(final long value, final int mask) {
+        long h = value * 0x9e3779b97f4a7c15L;
+        h ^= (h >>> 32);
+        return (int) h & mask;
+    }
+
+    private static int tableSize(final int expectedSize) {
+        int length = MIN_TABLE_SIZE;
+        while (length < expectedSize * 2) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.atex.plugins.autorelated;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.polopoly.cm.ContentId;
+
+/**
+ * Remember, for every site, the contents which cannot have related contents
+ * (i.e. they have no metadata in the configured dimensions or they do not
+ * allow them) so the controller can skip them before loading the content.
+ *
+ * Contents are stored as packed longs (see {@link RelatedEntry#toKey(ContentId)})
+ * in two generations of {@link LongHashSet}: when the current generation is
+ * full it becomes the old one and the previous old one is dropped, so the
+ * memory is bounded and the oldest contents are forgotten first.
+ *
+ * A content is removed when it changes (a new version may have metadata)
+ * and all the contents of a site are forgotten when its settings change.
+ */
+public class NegativeRelatedCache {
+
+    private static final int MAX_ENTRIES = Integer.getInteger("autorelated.negative.maxEntries", 50000);
+
+    private final ConcurrentMap<String, Generations> sites = new ConcurrentHashMap<>();
+    private final int maxEntries;
+
+    public NegativeRelatedCache() {
+        this(MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries the number of contents in a generation, every site can keep up to two generations.
+     */
+    public NegativeRelatedCache(final int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    public boolean contains(final CompiledSettings compiled, final ContentId contentId) {
+        final Generations generations = sites.get(compiled.getSiteKey());
+        return generations != null && generations.contains(compiled.getFingerprintHash(), RelatedEntry.toKey(contentId));
+    }
+
+    public void add(final CompiledSettings compiled, final ContentId contentId) {
+        final long key = RelatedEntry.toKey(contentId);
+        if (key == 0) {
+            return;
+        }
+        Generations generations = sites.get(compiled.getSiteKey());
+        if (generations == null) {
+            final Generations newGenerations = new Generations();
+            generations = sites.putIfAbsent(compiled.getSiteKey(), newGenerations);
+            if (generations == null) {
+                generations = newGenerations;
+            }
+        }
+        generations.add(compiled.getFingerprintHash(), key);
+    }
+
+    /**
+     * Forget a content in every site.
+     *
+     * @param contentId the content.
+     */
+    public void remove(final ContentId contentId) {
+        final long key = RelatedEntry.toKey(contentId);
+        for (final Generations generations : sites.values()) {
+            generations.remove(key);
+        }
+    }
+
+    public void clear() {
+        sites.clear();
+    }
+
+    private class Generations {
+
+        private long fingerprintHash;
+        private LongHashSet current = new LongHashSet();
+        private LongHashSet old = new LongHashSet();
+
+        synchronized boolean contains(final long fingerprintHash, final long key) {
+            return this.fingerprintHash == fingerprintHash && (current.contains(key) || old.contains(key));
+        }
+
+        synchronized void add(final long fingerprintHash, final long key) {
+            if (this.fingerprintHash != fingerprintHash) {
+
+                // the settings changed, what we knew is not valid anymore.
+
+                this.fingerprintHash = fingerprintHash;
+                current = new LongHashSet();
+                old = new LongHashSet();
+            }
+            if (old.contains(key)) {
+                return;
+            }
+            if (current.size() >= maxEntries) {
+                old = current;
+                current = new LongHashSet();
+            }
+            current.add(key);
+        }
+
+        synchronized void remove(final long key) {
+            current.remove(key);
+            old.remove(key);
+        }
+    }
+
+}
@@ -1,11 +1,15 @@
 package com.atex.plugins.autorelated;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.solr.client.solrj.SolrQuery;
 
+import com.atex.plugins.autorelated.decorators.WithoutContentId;
+import com.google.common.collect.Lists;
+import com.polopoly.cm.ContentId;
 import com.polopoly.cm.app.Editor;
 import com.polopoly.cm.app.Viewer;
 import com.polopoly.cm.app.search.widget.OSearchResult;
@@ -92,23 +96,35 @@ public class OSearchResultWidget extends OComplexPolicyWidget implements Viewer,
         }
     }
 
+    /**
+     * Build the query used by the front end (see {@link RelatedCalculator}) from the
+     * compiled site settings, the results are shown by the search result widget so
+     * they may differ from the list readers see:
+     * <ul>
+     * <li>the excluded contents are filtered by solr, with the exclusions of
+     * {@link #excludeRelated(ContentPolicy, WithDecorators)} and not the ones of the controller;</li>
+     * <li>the entities are not reduced to the rarest ones since the entity frequencies
+     * are only known by the front nodes;</li>
+     * <li>the hits are not checked against the cm server, so contents removed after
+     * they have been indexed may be shown.</li>
+     * </ul>
+     */
     private SolrQuery createQuery(final OrchidContext oc) throws CMException {
         final Policy policy = PolicyUtil.getTopPolicy(getPolicy());
         final SiteSettingsPolicy settings = searchUtil.getSiteSettings(policy);
-        if (settings.isEnabled()) {
-            final Metadata metadata = searchUtil.filterMetadata(settings, getMetadata(policy));
+        if (settings != null && settings.isEnabled()) {
+            final CompiledSettings compiled = CompiledSettings.of(settings);
+            final Metadata metadata = compiled.getDimensionFilter().filter(getMetadata(policy));
             if (shouldCalculateRelated(policy, metadata)) {
                 final String inputTemplate = policy.getInputTemplate().getExternalId().getExternalId();
                 final SolrQuery query = searchUtil.getSolrQuery(
-                        policy.getContentId()
-                              .getContentId(),
                         inputTemplate,
                         metadata,
                         settings.getMinimumMatch());
                 if (query != null) {
-                    final WithDecorators decorators = settings.getDecorators();
-                    excludeRelated((ContentPolicy) policy, decorators);
-                    return decorators.decorate(query);
+                    final WithDecorators exclusions = new WithDecorators();
+                    excludeRelated((ContentPolicy) policy, exclusions);
+                    return new WithDecorators(compiled.getDecorators(), exclusions).decorate(query);
                 }
             }
         }
@@ -123,8 +139,17 @@ public class OSearchResultWidget extends OComplexPolicyWidget implements Viewer,
         return searchUtil.getMetadata(policy);
     }
 
+    /**
+     * Add the decorators used to exclude contents from the results, by default the
+     * content itself and its related contents are excluded with a single filter query.
+     *
+     * @param policy the content.
+     * @param decorators the decorators of the query.
+     */
     protected void excludeRelated(final ContentPolicy policy, final WithDecorators decorators) {
-        searchUtil.excludeRelated(policy, decorators);
+        final List<ContentId> ids = Lists.newArrayList(policy.getContentId().getContentId());
+        ids.addAll(searchUtil.getRelatedIds(policy));
+        decorators.add(new WithoutContentId(ids.toArray(new ContentId[ids.size()])));
     }
 
     public void localRender(OrchidContext oc) throws IOException, OrchidException {
@@ -0,0 +1,376 @@
+package com.atex.plugins.autorelated;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.polopoly.cm.ContentId;
+
+/**
+ * Local, persistent store of the related lists calculated by the {@link RelatedPrecomputeJob}.
+ *
+ * Every site is kept in its own file together with the settings fingerprint
+ * and the checkpoint of the last run, the file is loaded in memory and it
+ * is reloaded when the job writes a new version. Lists calculated with
+ * different settings are never returned, nor lists calculated before the
+ * last change of their content seen by this node (see {@link #invalidate(ContentId)}).
+ *
+ * When some content events have been lost (see {@link #markDirty(long)}) the
+ * stored lists are still used, but the next run of the job for every site
+ * is a full one since the lists affected by the lost events are not known.
+ */
+public class PrecomputedStore {
+
+    private static final Logger LOGGER = Logger.getLogger(PrecomputedStore.class.getName());
+
+    private static final int MAGIC = 0x4152504c;
+    private static final int VERSION = 2;
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final int MAX_INVALIDATIONS = Integer.getInteger("autorelated.precomputed.maxInvalidations", 100000);
+
+    private static final String DIR_PROPERTY = "autorelated.precomputed.dir";
+    private static final String DIRTY_FILE = "related-dirty.bin";
+    private static volatile PrecomputedStore defaultStore;
+
+    private final File dir;
+    private final ConcurrentMap<String, SiteData> sites = new ConcurrentHashMap<>();
+    private final AtomicLong invalidatedBefore = new AtomicLong();
+    private final AtomicLong dirtySince = new AtomicLong();
+    private final Cache<Long, Long> invalidations;
+
+    public PrecomputedStore(final File dir) {
+        this.dir = dir;
+
+        // when an invalidation is forgotten we cannot tell which lists it was about,
+        // so all the lists older than it are ignored.
+
+        this.invalidations = CacheBuilder.newBuilder()
+                .maximumSize(MAX_INVALIDATIONS)
+                .removalListener(new RemovalListener<Long, Long>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<Long, Long> notification) {
+                        if (notification.wasEvicted()) {
+                            advance(invalidatedBefore, notification.getValue());
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * The store configured with the <code>autorelated.precomputed.dir</code> system property.
+     *
+     * @return the store or null if it has not been configured.
+     */
+    public static PrecomputedStore getDefault() {
+        if (defaultStore == null) {
+            final String path = System.getProperty(DIR_PROPERTY);
+            if (path == null || path.trim().isEmpty()) {
+                return null;
+            }
+            synchronized (PrecomputedStore.class) {
+                if (defaultStore == null) {
+                    defaultStore = new PrecomputedStore(new File(path.trim()));
+                }
+            }
+        }
+        return defaultStore;
+    }
+
+    /**
+     * Get the precomputed related list of a content.
+     *
+     * @param compiled the current settings.
+     * @param contentId the content.
+     * @return the list or null if it has not been precomputed with the current settings
+     *         or the list has been invalidated after it has been calculated.
+     */
+    public Entry get(final CompiledSettings compiled, final ContentId contentId) {
+        final SiteData data = getSiteData(compiled.getSiteKey());
+        if (data != null && data.fingerprint.equals(compiled.getFingerprint())) {
+            final Entry entry = data.entries.get(contentId.getContentId());
+            if (entry != null && entry.created > getInvalidationTime(contentId)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ignore the list of the given content until the job calculates it again.
+     *
+     * @param contentId the content whose list is no longer valid.
+     */
+    public void invalidate(final ContentId contentId) {
+        invalidations.put(RelatedEntry.toKey(contentId), System.currentTimeMillis());
+    }
+
+    /**
+     * Ignore all the lists until the job calculates them again.
+     */
+    public void invalidateAll() {
+        advance(invalidatedBefore, System.currentTimeMillis());
+        invalidations.invalidateAll();
+    }
+
+    /**
+     * Record that some content events have been lost at the given time, the
+     * mark is kept in the store directory so the job sees it even when it
+     * runs in another process.
+     *
+     * @param time the time the events have been lost.
+     */
+    public void markDirty(final long time) {
+        advance(dirtySince, time);
+        final File tmp = new File(dir, DIRTY_FILE + ".tmp");
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create " + dir.getAbsolutePath());
+            }
+            try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeLong(dirtySince.get());
+            }
+            Files.move(tmp.toPath(), new File(dir, DIRTY_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot write " + tmp.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The time of the last run of the job for the given settings.
+     *
+     * @param compiled the current settings.
+     * @return the time in milliseconds or 0 if the job never ran with the current settings
+     *         or some content events have been lost since then (see {@link #markDirty(long)}).
+     */
+    public long getCheckpoint(final CompiledSettings compiled) {
+        final SiteData data = getSiteData(compiled.getSiteKey());
+        if (data != null && data.fingerprint.equals(compiled.getFingerprint()) && data.checkpoint > getDirtySince()) {
+            return data.checkpoint;
+        }
+        return 0;
+    }
+
+    /**
+     * Store the given lists.
+     *
+     * @param compiled the settings used to calculate the lists.
+     * @param entries the lists to store, by content.
+     * @param checkpoint the time the calculation started.
+     * @param merge if true the lists are added to the ones already stored.
+     * @throws IOException if the file cannot be written.
+     */
+    public synchronized void write(final CompiledSettings compiled,
+                                   final Map<ContentId, Entry> entries,
+                                   final long checkpoint,
+                                   final boolean merge) throws IOException {
+        final Map<ContentId, Entry> all = Maps.newHashMap();
+        if (merge) {
+            final SiteData data = getSiteData(compiled.getSiteKey());
+            if (data != null && data.fingerprint.equals(compiled.getFingerprint())) {
+                all.putAll(data.entries);
+            }
+        }
+        all.putAll(entries);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir.getAbsolutePath());
+        }
+        final File file = getFile(compiled.getSiteKey());
+        final File tmp = new File(dir, file.getName() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(compiled.getFingerprint());
+            out.writeLong(checkpoint);
+            out.writeInt(all.size());
+            for (final Map.Entry<ContentId, Entry> entry : all.entrySet()) {
+                final Entry value = entry.getValue();
+                writeId(out, entry.getKey());
+                out.writeLong(value.created);
+                out.writeInt(value.ids.size());
+                for (final ContentId id : value.ids) {
+                    writeId(out, id);
+                }
+                out.writeInt(value.entities.size());
+                for (final String entity : value.entities) {
+                    out.writeUTF(entity);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        sites.put(compiled.getSiteKey(), new SiteData(compiled.getFingerprint(), checkpoint, all, file.lastModified()));
+        LOGGER.log(Level.INFO, "stored " + all.size() + " related lists for " + compiled.getSiteKey());
+    }
+
+    private SiteData getSiteData(final String siteKey) {
+        final long now = System.currentTimeMillis();
+        final SiteData data = sites.get(siteKey);
+        if (data != null && (now - data.lastCheck) < CHECK_INTERVAL) {
+            return data;
+        }
+        final File file = getFile(siteKey);
+        final long lastModified = file.lastModified();
+        if (data != null && data.lastModified == lastModified) {
+            data.lastCheck = now;
+            return data;
+        }
+        final SiteData newData = load(file);
+        if (newData != null) {
+            sites.put(siteKey, newData);
+        } else {
+            sites.remove(siteKey);
+        }
+        return newData;
+    }
+
+    private SiteData load(final File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        final long lastModified = file.lastModified();
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.log(Level.WARNING, "ignoring " + file.getAbsolutePath() + ", unknown format");
+                return null;
+            }
+            final String fingerprint = in.readUTF();
+            final long checkpoint = in.readLong();
+            final int count = in.readInt();
+            final Map<ContentId, Entry> entries = Maps.newHashMapWithExpectedSize(count);
+            for (int idx = 0; idx < count; idx++) {
+                final ContentId contentId = readId(in);
+                final long created = in.readLong();
+                final int size = in.readInt();
+                final List<ContentId> ids = Lists.newArrayListWithCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    ids.add(readId(in));
+                }
+                final int entitiesSize = in.readInt();
+                final List<String> entities = Lists.newArrayListWithCapacity(entitiesSize);
+                for (int i = 0; i < entitiesSize; i++) {
+                    entities.add(in.readUTF());
+                }
+                entries.put(contentId, new Entry(ids, entities, created));
+            }
+            return new SiteData(fingerprint, checkpoint, entries, lastModified);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot read " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+        return null;
+    }
+
+    private long getDirtySince() {
+        final File file = new File(dir, DIRTY_FILE);
+        if (file.isFile()) {
+            try (final DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                advance(dirtySince, in.readLong());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "cannot read " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+        return dirtySince.get();
+    }
+
+    private long getInvalidationTime(final ContentId contentId) {
+        final Long time = invalidations.getIfPresent(RelatedEntry.toKey(contentId));
+        return Math.max(invalidatedBefore.get(), (time != null) ? time : 0);
+    }
+
+    private static void advance(final AtomicLong value, final long time) {
+        long current = value.get();
+        while (current < time && !value.compareAndSet(current, time)) {
+            current = value.get();
+        }
+    }
+
+    private File getFile(final String siteKey) {
+        return new File(dir, "related-" + siteKey.replaceAll("[^A-Za-z0-9.]", "_") + ".bin");
+    }
+
+    private static void writeId(final DataOutputStream out, final ContentId id) throws IOException {
+        out.writeInt(id.getMajor());
+        out.writeInt(id.getMinor());
+    }
+
+    private static ContentId readId(final DataInputStream in) throws IOException {
+        return new ContentId(in.readInt(), in.readInt());
+    }
+
+    /**
+     * A precomputed list.
+     */
+    public static class Entry {
+
+        private final List<ContentId> ids;
+        private final List<String> entities;
+        private final long created;
+
+        /**
+         * @param ids the related contents.
+         * @param entities the entities used to find them, see {@link RelatedCalculator.Result#getEntities()}.
+         * @param created the time the calculation started.
+         */
+        public Entry(final List<ContentId> ids, final List<String> entities, final long created) {
+            this.ids = Collections.unmodifiableList(ids);
+            this.entities = Collections.unmodifiableList(entities);
+            this.created = created;
+        }
+
+        public List<ContentId> getIds() {
+            return ids;
+        }
+
+        public List<String> getEntities() {
+            return entities;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+    }
+
+    private static class SiteData {
+
+        private final String fingerprint;
+        private final long checkpoint;
+        private final Map<ContentId, Entry> entries;
+        private final long lastModified;
+        private volatile long lastCheck;
+
+        SiteData(final String fingerprint,
+                 final long checkpoint,
+                 final Map<ContentId, Entry> entries,
+                 final long lastModified) {
+            this.fingerprint = fingerprint;
+            this.checkpoint = checkpoint;
+            this.entries = entries;
+            this.lastModified = lastModified;
+            this.lastCheck = System.currentTimeMillis();
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+package com.atex.plugins.autorelated;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A binary snapshot of the related ids cache, it is written periodically
+ * and read at startup so a node does not start with an empty cache.
+ *
+ * Every site is written with the fingerprint of the settings its lists
+ * have been calculated with, a site is loaded only if its settings did
+ * not change in the meantime. Together with the lists we keep what the
+ * {@link RelatedReverseIndex} knows about them, so the loaded lists are
+ * invalidated by the content events as the calculated ones. The sites
+ * which have not been requested since the snapshot has been read are
+ * written again as they were read.
+ */
+public class RelatedCacheSnapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(RelatedCacheSnapshot.class.getName());
+
+    private static final int MAGIC = 0x41525343;
+    private static final int VERSION = 1;
+
+    private static final String FILE_PROPERTY = "autorelated.snapshot.file";
+
+    private final File file;
+
+    public RelatedCacheSnapshot(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * The snapshot configured with the <code>autorelated.snapshot.file</code> system property.
+     *
+     * @return the snapshot or null if it has not been configured.
+     */
+    public static RelatedCacheSnapshot getDefault() {
+        final String path = System.getProperty(FILE_PROPERTY);
+        if (path == null || path.trim().isEmpty()) {
+            return null;
+        }
+        return new RelatedCacheSnapshot(new File(path.trim()));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Write the snapshot, the entries which are not in the reverse index are skipped.
+     *
+     * @param cache the cache.
+     * @param index the reverse index of the cache.
+     * @param fingerprints the current settings fingerprint hash of every site, the sites without it are skipped.
+     * @param pending the sites read from the previous snapshot and not loaded yet, they are written as they are.
+     * @return the number of written entries.
+     * @throws IOException if the file cannot be written.
+     */
+    public int write(final RelatedIdsCache cache,
+                     final RelatedReverseIndex index,
+                     final Map<String, Long> fingerprints,
+                     final Map<String, Site> pending) throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("cannot create " + parent);
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        int count = 0;
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            final List<String> siteKeys = Lists.newArrayList();
+            for (final String siteKey : cache.getSiteKeys()) {
+                if (fingerprints.containsKey(siteKey)) {
+                    siteKeys.add(siteKey);
+                }
+            }
+            final Map<String, Site> pendingSites = Maps.newHashMap(pending);
+            pendingSites.keySet().removeAll(siteKeys);
+            out.writeInt(siteKeys.size() + pendingSites.size());
+            for (final String siteKey : siteKeys) {
+                final List<Item> items = Lists.newArrayList();
+                for (final Map.Entry<Long, RelatedEntry> entry : cache.getEntries(siteKey).entrySet()) {
+                    final RelatedReverseIndex.Registration registration = index.getRegistration(entry.getKey());
+                    if (registration != null && registration.getEntry() == entry.getValue()) {
+                        items.add(new Item(entry.getKey(), registration.getSource(), registration.getEntities(), entry.getValue()));
+                    }
+                }
+                out.writeUTF(siteKey);
+                out.writeLong(fingerprints.get(siteKey));
+                out.writeInt(items.size());
+                for (final Item item : items) {
+                    writeItem(out, item);
+                }
+                count += items.size();
+            }
+            for (final Map.Entry<String, Site> site : pendingSites.entrySet()) {
+                out.writeUTF(site.getKey());
+                out.writeLong(site.getValue().getFingerprintHash());
+                out.writeInt(site.getValue().getItems().size());
+                for (final Item item : site.getValue().getItems()) {
+                    writeItem(out, item);
+                }
+                count += site.getValue().getItems().size();
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Read the snapshot.
+     *
+     * @return the sites in the snapshot, the map is empty if there is no snapshot or it cannot be read.
+     */
+    public Map<String, Site> read() {
+        final Map<String, Site> sites = Maps.newHashMap();
+        if (!file.exists()) {
+            return sites;
+        }
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.log(Level.WARNING, "ignoring " + file + ", unknown format");
+                return sites;
+            }
+            final int siteCount = in.readInt();
+            for (int s = 0; s < siteCount; s++) {
+                final String siteKey = in.readUTF();
+                final long fingerprintHash = in.readLong();
+                final int count = in.readInt();
+                final List<Item> items = Lists.newArrayListWithCapacity(count);
+                for (int idx = 0; idx < count; idx++) {
+                    items.add(readItem(in));
+                }
+                sites.put(siteKey, new Site(fingerprintHash, items));
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot read " + file + ": " + e.getMessage());
+            return Maps.newHashMap();
+        }
+        return sites;
+    }
+
+    private static void writeItem(final DataOutputStream out, final Item item) throws IOException {
+        out.writeLong(item.key);
+        out.writeLong(item.source);
+        out.writeInt(item.entities.size());
+        for (final String entity : item.entities) {
+            out.writeUTF(entity);
+        }
+        final RelatedEntry entry = item.entry;
+        out.writeLong(entry.getCreated());
+        out.writeInt(entry.size());
+        for (int idx = 0; idx < entry.size(); idx++) {
+            out.writeInt(entry.getMajor(idx));
+            out.writeInt(entry.getMinor(idx));
+        }
+    }
+
+    private static Item readItem(final DataInputStream in) throws IOException {
+        final long key = in.readLong();
+        final long source = in.readLong();
+        final int entityCount = in.readInt();
+        final List<String> entities = Lists.newArrayListWithCapacity(entityCount);
+        for (int idx = 0; idx < entityCount; idx++) {
+            entities.add(in.readUTF());
+        }
+        final long created = in.readLong();
+        final int size = in.readInt();
+        final int[] majors = new int[size];
+        final int[] minors = new int[size];
+        for (int idx = 0; idx < size; idx++) {
+            majors[idx] = in.readInt();
+            minors[idx] = in.readInt();
+        }
+        return new Item(key, source, entities, new RelatedEntry(majors, minors, created));
+    }
+
+    /**
+     * The entries of a site.
+     */
+    public static class Site {
+
+        private final long fingerprintHash;
+        private final List<Item> items;
+
+        public Site(final long fingerprintHash, final List<Item> items) {
+            this.fingerprintHash = fingerprintHash;
+            this.items = Collections.unmodifiableList(items);
+        }
+
+        public long getFingerprintHash() {
+            return fingerprintHash;
+        }
+
+        public List<Item> getItems() {
+            return items;
+        }
+    }
+
+    /**
+     * A cache entry together with its reverse index registration.
+     */
+    public static class Item {
+
+        private final long key;
+        private final long source;
+        private final List<String> entities;
+        private final RelatedEntry entry;
+
+        public Item(final long key, final long source, final List<String> entities, final RelatedEntry entry) {
+            this.key = key;
+            this.source = source;
+            this.entities = entities;
+            this.entry = entry;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        public long getSource() {
+            return source;
+        }
+
+        public List<String> getEntities() {
+            return entities;
+        }
+
+        public RelatedEntry getEntry() {
+            return entry;
+        }
+    }
+
+}
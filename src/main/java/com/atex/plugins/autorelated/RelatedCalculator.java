@@ -0,0 +1,351 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atex.plugins.autorelated.decorators.DecoratorChain;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.client.CMRuntimeException;
+import com.polopoly.cm.policy.ContentPolicy;
+import com.polopoly.cm.policy.Policy;
+import com.polopoly.cm.policy.PolicyCMServer;
+import com.polopoly.metadata.Metadata;
+import com.polopoly.search.solr.QueryDecorator;
+import com.polopoly.search.solr.SearchClient;
+import com.polopoly.search.solr.querydecorators.WithDecorators;
+import com.polopoly.util.StringUtil;
+
+/**
+ * Calculate the related contents of a single content.
+ *
+ * This is the pipeline used by the front end, it is shared with the batch
+ * jobs so they produce the very same lists.
+ */
+public class RelatedCalculator {
+
+    private static final Logger LOGGER = Logger.getLogger(RelatedCalculator.class.getName());
+
+    private static final String LOCAL_ENGINE = "local";
+    private static final int SHARED_EXTRA_RESULTS = Integer.getInteger("autorelated.shared.extraResults", 5);
+
+    protected final SearchUtil searchUtil = new SearchUtil();
+
+    public Result calculate(final SearchClient searchClient,
+                            final SiteSettingsPolicy settings,
+                            final Policy policy) throws CMException {
+        return calculate(searchClient, settings, policy, null);
+    }
+
+    /**
+     * Calculate the related contents of a content, the search results are shared with
+     * the other contents with the same metadata and input template.
+     *
+     * @param searchClient the search client.
+     * @param settings the site settings.
+     * @param policy the content.
+     * @param shared where the shared results are kept, when null the results are not shared.
+     * @return the result.
+     * @throws CMException if the list cannot be calculated.
+     */
+    public Result calculate(final SearchClient searchClient,
+                            final SiteSettingsPolicy settings,
+                            final Policy policy,
+                            final SharedResults shared) throws CMException {
+
+        final ContentId contentId = policy.getContentId().getContentId();
+        List<ContentId> results = Lists.newArrayList();
+        long created = System.currentTimeMillis();
+        Metadata metadata = null;
+        boolean shortCircuit = false;
+        try {
+            final AutoRelatedMetrics metrics = AutoRelatedMetrics.getInstance();
+            metrics.calculation();
+            final Metadata contentMetadata = getMetadata(policy);
+            final long filterStart = System.nanoTime();
+            metadata = searchUtil.filterMetadata(settings, contentMetadata);
+
+            // heavily tagged contents would give huge queries, only the rarest
+            // entities are used since they are the ones that make a difference.
+
+            final EntityFrequencies frequencies = getEntityFrequencies();
+            frequencies.observe(policy.getContentId(), metadata);
+            metadata = frequencies.selectRarest(metadata, settings.getMaxEntitiesPerDimension());
+            metrics.metadataFilter(System.nanoTime() - filterStart);
+            if (shouldCalculateRelated(policy, metadata)) {
+                final String inputTemplate = policy.getInputTemplate().getExternalId().getExternalId();
+
+                // the per content exclusions are layered on top of the shared site decorators.
+
+                final WithDecorators exclusions = new WithDecorators();
+                excludeRelated((ContentPolicy) policy, exclusions);
+                final CompiledSettings compiled = CompiledSettings.of(settings);
+                final QueryDecorator decorators = new WithDecorators(compiled.getDecorators(), exclusions);
+                final Set<ContentId> excludedIds = Sets.newHashSet(contentId);
+                for (final ContentId id : searchUtil.getRelatedIds((ContentPolicy) policy)) {
+                    excludedIds.add(id.getContentId());
+                }
+                final RelatedRequest request = new RelatedRequest(
+                        policy.getCMServer(),
+                        compiled.getSiteKey(),
+                        contentId,
+                        inputTemplate,
+                        metadata,
+                        settings.getMinimumMatch(),
+                        settings.getMaxResults(),
+                        excludedIds,
+                        decorators,
+                        settings.getSearchTimeout());
+                final RelatedEngine engine = getEngine(searchClient, settings, policy.getCMServer());
+
+                // the per content exclusions added by excludeRelated would be shared
+                // too, in that case every content runs its own search.
+
+                if (shared != null && DecoratorChain.of(exclusions).isEmpty()) {
+                    final RelatedEntry entry = findShared(engine, request, compiled, shared);
+                    results = entry.getIds();
+                    created = entry.getCreated();
+                } else {
+                    results = engine.findRelated(request);
+                }
+            } else {
+                metrics.shortCircuit();
+                shortCircuit = true;
+            }
+        } catch (CMRuntimeException e) {
+            LOGGER.log(Level.FINE, "cannot find metadata aware from " + contentId.getContentIdString() + ": " + e.getMessage(), e);
+        }
+        final List<String> entities = (metadata != null)
+                ? searchUtil.getEntityKeys(metadata)
+                : Collections.<String>emptyList();
+        return new Result(contentId, results, entities, shortCircuit, created);
+    }
+
+    /**
+     * Return the entities the related list of a content depends on, without searching:
+     * all the entities of its filtered metadata, a superset of the ones used by the
+     * query (see {@link Result#getEntities()}) since the rarest ones are not selected.
+     *
+     * @param settings the site settings.
+     * @param policy the content.
+     * @return a not null list of entity keys.
+     */
+    public List<String> getEntityKeys(final SiteSettingsPolicy settings, final Policy policy) {
+        try {
+            return searchUtil.getEntityKeys(searchUtil.filterMetadata(settings, getMetadata(policy)));
+        } catch (CMRuntimeException e) {
+            LOGGER.log(Level.FINE, "cannot find metadata aware from " + policy.getContentId().getContentIdString() + ": " + e.getMessage(), e);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Return the engine used to find the related contents, the solr one unless the
+     * <code>autorelated.engine</code> system property is <code>local</code> and the
+     * local index of the site is ready.
+     *
+     * @param searchClient the search client.
+     * @param settings the site settings.
+     * @param cmServer the cm server.
+     * @return a not null engine.
+     */
+    protected RelatedEngine getEngine(final SearchClient searchClient,
+                                      final SiteSettingsPolicy settings,
+                                      final PolicyCMServer cmServer) {
+        if (LOCAL_ENGINE.equals(System.getProperty("autorelated.engine"))) {
+            final LocalRelatedEngine engine = LocalRelatedEngine.getInstance();
+            if (engine.ensureIndexed(cmServer, searchClient, settings)) {
+                return engine;
+            }
+        }
+        return new SolrRelatedEngine(searchClient);
+    }
+
+    protected EntityFrequencies getEntityFrequencies() {
+        return EntityFrequencies.getInstance();
+    }
+
+    /**
+     * The returned entry is as old as the shared results it has been taken from.
+     */
+    private RelatedEntry findShared(final RelatedEngine engine,
+                                    final RelatedRequest request,
+                                    final CompiledSettings compiled,
+                                    final SharedResults shared) throws CMException {
+
+        // the shared list is a bit longer, so there is still room for the
+        // contents excluded by every single content.
+
+        final int sharedMaxResults = request.getMaxResults() + SHARED_EXTRA_RESULTS;
+        final RelatedRequest sharedRequest = new RelatedRequest(
+                request.getCMServer(),
+                request.getSiteKey(),
+                null,
+                request.getInputTemplate(),
+                request.getMetadata(),
+                request.getMinimumMatch(),
+                sharedMaxResults,
+                Collections.<ContentId>emptySet(),
+                compiled.getDecorators(),
+                request.getSearchTimeout());
+        final long key = RelatedIdsCache.getKey(
+                compiled,
+                searchUtil.getMetadataSignature(request.getInputTemplate(), request.getMetadata()));
+        final RelatedEntry sharedEntry = shared.get(
+                key,
+                request.getContentId(),
+                searchUtil.getEntityKeys(request.getMetadata()),
+                new Callable<List<ContentId>>() {
+                    @Override
+                    public List<ContentId> call() throws CMException {
+                        return engine.findRelated(sharedRequest);
+                    }
+                });
+        final List<ContentId> sharedIds = sharedEntry.getIds();
+        final List<ContentId> ids = Lists.newArrayList();
+        for (final ContentId id : sharedIds) {
+            if (ids.size() >= request.getMaxResults()) {
+                break;
+            }
+            if (!request.getExcludedIds().contains(id.getContentId())) {
+                ids.add(id);
+            }
+        }
+
+        // a full shared list may have more contents, the content excludes too
+        // many of them so it needs its own search.
+
+        if (ids.size() < request.getMaxResults() && sharedIds.size() >= sharedMaxResults) {
+            return new RelatedEntry(engine.findRelated(request));
+        }
+        return new RelatedEntry(ids, sharedEntry.getCreated());
+    }
+
+    protected boolean shouldCalculateRelated(final Policy policy, final Metadata metadata) throws CMException {
+        if (searchUtil.hasMetadata(metadata)) {
+            final String allowAutorelatedStr = ((ContentPolicy) policy).getComponent("allowAutorelated", "value");
+            return StringUtil.isEmpty(allowAutorelatedStr) || Boolean.parseBoolean(allowAutorelatedStr);
+        }
+        return false;
+    }
+
+    protected Metadata getMetadata(final Policy policy) {
+        return searchUtil.getMetadata(policy);
+    }
+
+    /**
+     * Add the decorators used to exclude contents from the related list.
+     *
+     * By default nothing is added: the content itself and its related contents
+     * (see {@link SearchUtil#getRelatedIds(ContentPolicy)}) are dropped from the
+     * results by the engine (see {@link RelatedRequest#getExcludedIds()}) instead
+     * of being excluded by the query as {@link SearchUtil#excludeRelated(ContentPolicy, WithDecorators)}
+     * does. A subclass may add its own decorators, but a content with any
+     * decorator added here does not use the shared results and runs its own search.
+     *
+     * @param policy the content.
+     * @param decorators the decorators of the query.
+     */
+    protected void excludeRelated(final ContentPolicy policy, final WithDecorators decorators) {
+    }
+
+    /**
+     * Keeps the search results shared by the contents with the same related query.
+     */
+    public interface SharedResults {
+
+        /**
+         * Return the shared results, loading them if needed.
+         *
+         * @param key the key of the related query, it includes the site settings.
+         * @param source the content which is loading the results.
+         * @param entities the entity keys used by the query.
+         * @param loader the search.
+         * @return a not null entry, with the time the results have been loaded.
+         * @throws CMException if the results cannot be loaded.
+         */
+        RelatedEntry get(long key,
+                         ContentId source,
+                         Collection<String> entities,
+                         Callable<List<ContentId>> loader) throws CMException;
+    }
+
+    /**
+     * The related contents of a content.
+     */
+    public static class Result {
+
+        private final ContentId contentId;
+        private final List<ContentId> ids;
+        private final List<String> entities;
+        private final boolean shortCircuit;
+        private final long created;
+
+        public Result(final ContentId contentId, final List<ContentId> ids, final List<String> entities) {
+            this(contentId, ids, entities, false);
+        }
+
+        public Result(final ContentId contentId,
+                      final List<ContentId> ids,
+                      final List<String> entities,
+                      final boolean shortCircuit) {
+            this(contentId, ids, entities, shortCircuit, System.currentTimeMillis());
+        }
+
+        public Result(final ContentId contentId,
+                      final List<ContentId> ids,
+                      final List<String> entities,
+                      final boolean shortCircuit,
+                      final long created) {
+            this.contentId = contentId;
+            this.ids = ids;
+            this.entities = entities;
+            this.shortCircuit = shortCircuit;
+            this.created = created;
+        }
+
+        public ContentId getContentId() {
+            return contentId;
+        }
+
+        public List<ContentId> getIds() {
+            return ids;
+        }
+
+        /**
+         * The entity keys used to calculate the list.
+         *
+         * @return a not null list.
+         */
+        public List<String> getEntities() {
+            return entities;
+        }
+
+        /**
+         * True if the content cannot have related contents (see {@link RelatedCalculator#shouldCalculateRelated(Policy, Metadata)}).
+         *
+         * @return a boolean.
+         */
+        public boolean isShortCircuit() {
+            return shortCircuit;
+        }
+
+        /**
+         * When the list has been calculated, it is older than the calculation
+         * when it has been taken from the shared results.
+         *
+         * @return the time in milliseconds.
+         */
+        public long getCreated() {
+            return created;
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.atex.plugins.autorelated;
+
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesce the calculation of the same related list across the front nodes.
+ *
+ * The local cache already makes sure a list is calculated once per jvm, when
+ * a node misses a list it first looks in the {@link SharedRelatedStore}, if
+ * the list is not there it tries to lease the key: the node which gets the
+ * lease calculates the list and publish it, the others poll the store for a
+ * while (never more than the search latency budget) and calculate the list
+ * themselves only if it does not show up.
+ */
+public class RelatedCoalescer {
+
+    private static final Logger LOGGER = Logger.getLogger(RelatedCoalescer.class.getName());
+
+    private static final long LEASE_TIME = Long.getLong("autorelated.shared.leaseMs", 5000);
+    private static final long WAIT_TIME = Long.getLong("autorelated.shared.waitMs", 2000);
+    private static final long POLL_INTERVAL = Long.getLong("autorelated.shared.pollMs", 50);
+
+    private final SharedRelatedStore store;
+    private final long leaseTime;
+    private final long waitTime;
+    private final long pollInterval;
+
+    public RelatedCoalescer(final SharedRelatedStore store) {
+        this(store, LEASE_TIME, WAIT_TIME, POLL_INTERVAL);
+    }
+
+    public RelatedCoalescer(final SharedRelatedStore store,
+                            final long leaseTime,
+                            final long waitTime,
+                            final long pollInterval) {
+        this.store = store;
+        this.leaseTime = leaseTime;
+        this.waitTime = waitTime;
+        this.pollInterval = Math.max(1, pollInterval);
+    }
+
+    public SharedRelatedStore getStore() {
+        return store;
+    }
+
+    /**
+     * Get a list from the shared store or calculate it.
+     *
+     * @param key the cache key.
+     * @param ttl how long a calculated list will be kept in the shared store, lists older than this are ignored.
+     * @param maxAge if greater than zero lists older than this are ignored.
+     * @param maxWait if greater than zero the maximum time to wait for the list calculated by another node.
+     * @param loader calculate the list.
+     * @return the list and where it comes from.
+     * @throws Exception if the loader fails.
+     */
+    public Result load(final long key,
+                       final long ttl,
+                       final long maxAge,
+                       final long maxWait,
+                       final Callable<RelatedEntry> loader) throws Exception {
+        final AutoRelatedMetrics metrics = AutoRelatedMetrics.getInstance();
+        RelatedEntry entry = getShared(key, ttl, maxAge);
+        if (entry != null) {
+            metrics.sharedHit();
+            return new Result(entry, true);
+        }
+        if (store.tryLease(key, leaseTime)) {
+            try {
+                return new Result(calculate(key, ttl, loader), false);
+            } finally {
+                store.releaseLease(key);
+            }
+        }
+
+        // another node is calculating the list.
+
+        final long wait = (maxWait > 0) ? Math.min(waitTime, maxWait) : waitTime;
+        final long deadline = System.currentTimeMillis() + wait;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            entry = getShared(key, ttl, maxAge);
+            if (entry != null) {
+                metrics.sharedHit();
+                return new Result(entry, true);
+            }
+        }
+        metrics.sharedWaitTimeout();
+        LOGGER.log(Level.FINE, "related list " + key + " did not show up in " + wait + "ms, calculating it");
+        return new Result(calculate(key, ttl, loader), false);
+    }
+
+    private RelatedEntry calculate(final long key, final long ttl, final Callable<RelatedEntry> loader) throws Exception {
+        final RelatedEntry entry = loader.call();
+        store.put(key, entry, ttl);
+        return entry;
+    }
+
+    private RelatedEntry getShared(final long key, final long ttl, final long maxAge) {
+        final RelatedEntry entry = store.get(key);
+
+        // the clock of the store may not be ours, so the age is checked here too.
+
+        if (entry != null && (entry.isOlderThan(ttl) || (maxAge > 0 && entry.isOlderThan(maxAge)))) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * The outcome of a {@link #load(long, long, long, long, Callable)} call.
+     */
+    public static class Result {
+
+        private final RelatedEntry entry;
+        private final boolean shared;
+
+        public Result(final RelatedEntry entry, final boolean shared) {
+            this.entry = entry;
+            this.shared = shared;
+        }
+
+        public RelatedEntry getEntry() {
+            return entry;
+        }
+
+        /**
+         * True if the list has been calculated by another node.
+         *
+         * @return a boolean.
+         */
+        public boolean isShared() {
+            return shared;
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.atex.plugins.autorelated;
+
+import java.util.List;
+
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+
+/**
+ * An engine which finds the related contents of a content.
+ */
+public interface RelatedEngine {
+
+    /**
+     * Find the related contents.
+     *
+     * @param request the content and the parameters of the search.
+     * @return at most {@link RelatedRequest#getMaxResults()} ids, sorted by relevance.
+     * @throws CMException if the search cannot be done.
+     */
+    List<ContentId> findRelated(RelatedRequest request) throws CMException;
+
+}
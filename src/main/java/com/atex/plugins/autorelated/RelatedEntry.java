@@ -0,0 +1,135 @@
+package com.atex.plugins.autorelated;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.polopoly.cm.ContentId;
+
+/**
+ * A cached list of related contents.
+ *
+ * The ids are packed in two int arrays (majors and minors) so an entry
+ * costs a handful of objects regardless of the number of ids, the
+ * {@link ContentId} objects are created only when the list is rendered.
+ */
+public class RelatedEntry {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final int[] majors;
+    private final int[] minors;
+    private final long created;
+    private volatile long refreshed;
+
+    public RelatedEntry(final List<ContentId> ids) {
+        this(ids, System.currentTimeMillis());
+    }
+
+    public RelatedEntry(final List<ContentId> ids, final long created) {
+        final int size = ids.size();
+        this.majors = (size > 0) ? new int[size] : EMPTY;
+        this.minors = (size > 0) ? new int[size] : EMPTY;
+        for (int idx = 0; idx < size; idx++) {
+            final ContentId id = ids.get(idx);
+            majors[idx] = id.getMajor();
+            minors[idx] = id.getMinor();
+        }
+        this.created = created;
+        this.refreshed = created;
+    }
+
+    public RelatedEntry(final int[] majors, final int[] minors, final long created) {
+        if (majors.length != minors.length) {
+            throw new IllegalArgumentException("majors and minors must have the same length");
+        }
+        this.majors = majors;
+        this.minors = minors;
+        this.created = created;
+        this.refreshed = created;
+    }
+
+    public int size() {
+        return majors.length;
+    }
+
+    public int getMajor(final int idx) {
+        return majors[idx];
+    }
+
+    public int getMinor(final int idx) {
+        return minors[idx];
+    }
+
+    /**
+     * Return the related ids, a new list is created at every call.
+     *
+     * @return a not null list.
+     */
+    public List<ContentId> getIds() {
+        final List<ContentId> ids = Lists.newArrayListWithCapacity(majors.length);
+        for (int idx = 0; idx < majors.length; idx++) {
+            ids.add(new ContentId(majors[idx], minors[idx]));
+        }
+        return ids;
+    }
+
+    /**
+     * When the list has been calculated.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    public boolean isOlderThan(final long age) {
+        return (System.currentTimeMillis() - created) > age;
+    }
+
+    /**
+     * True if the list has not been calculated or refreshed in the given time,
+     * see {@link #markRefreshed(long)}.
+     *
+     * @param refreshTime the time in milliseconds.
+     * @return a boolean.
+     */
+    public boolean needsRefresh(final long refreshTime) {
+        return (System.currentTimeMillis() - Math.max(created, refreshed)) > refreshTime;
+    }
+
+    /**
+     * Record that the list has been refreshed, even if the refresh found the same
+     * list (i.e. it has been read again from the shared results) and so it did not
+     * replace this entry.
+     *
+     * @param time the time of the refresh.
+     */
+    void markRefreshed(final long time) {
+        refreshed = Math.max(refreshed, time);
+    }
+
+    /**
+     * Return the key of the content at the given position, see {@link #toKey(ContentId)}.
+     *
+     * @param idx the position.
+     * @return the key.
+     */
+    public long getKey(final int idx) {
+        return toKey(majors[idx], minors[idx]);
+    }
+
+    /**
+     * Pack a content id (without version) in a long.
+     *
+     * @param id the content id.
+     * @return the key.
+     */
+    public static long toKey(final ContentId id) {
+        return toKey(id.getMajor(), id.getMinor());
+    }
+
+    public static long toKey(final int major, final int minor) {
+        return ((long) major << 32) | (minor & 0xffffffffL);
+    }
+
+}
@@ -0,0 +1,333 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Cache of the related ids, split in one bounded segment for every site.
+ *
+ * Keys are 64 bit hashes of the settings fingerprint and of the content,
+ * see {@link #getKey(CompiledSettings, String)}, and values are packed
+ * {@link RelatedEntry} objects.
+ *
+ * Every segment is sized and expired using the site settings, so a big site
+ * cannot evict the entries of a small one and editors can tune the cache
+ * from the site settings. When the settings change the segment of that
+ * site is rebuilt.
+ *
+ * When the site has a refresh time, entries older than the refresh time are
+ * still served but they are calculated again in background (only one
+ * refresh for every key, the refresh time counts from the last refresh
+ * also when it found the same list), the cache time is the hard limit after which the
+ * entry must be loaded again by the caller.
+ */
+public class RelatedIdsCache {
+
+    private static final Logger LOGGER = Logger.getLogger(RelatedIdsCache.class.getName());
+
+    static final long DEFAULT_CACHE_TIME = TimeUnit.MINUTES.toMillis(10);
+    static final int DEFAULT_CACHE_SIZE = 1000;
+
+    private static final int REFRESH_THREADS = Integer.getInteger("autorelated.refresh.threads", 2);
+    private static final int REFRESH_QUEUE_SIZE = Integer.getInteger("autorelated.refresh.queueSize", 100);
+
+    private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+
+    private final ConcurrentMap<String, Segment> segments = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Boolean> refreshing = new ConcurrentHashMap<>();
+    private final RemovalListener<Long, Object> removalListener;
+    private final ExecutorService refreshExecutor;
+
+    public RelatedIdsCache() {
+        this(null);
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param removalListener if not null it will be notified every time an entry is removed from the cache.
+     */
+    public RelatedIdsCache(final RemovalListener<Long, Object> removalListener) {
+        this.removalListener = removalListener;
+        this.refreshExecutor = createRefreshExecutor();
+    }
+
+    public RelatedEntry get(final SiteSettingsPolicy settings,
+                            final long key,
+                            final Callable<RelatedEntry> loader) throws ExecutionException {
+        final Segment segment = getSegment(settings);
+        RelatedEntry entry = segment.cache.get(key, loader);
+        if (entry.isOlderThan(getCacheTime(settings))) {
+
+            // entries calculated elsewhere (i.e. by another node) expire from the time they
+            // have been created, not from the time they have been cached here.
+
+            segment.cache.asMap().remove(key, entry);
+            entry = segment.cache.get(key, loader);
+        }
+        final long refreshTime = getRefreshTime(settings);
+        if (refreshTime > 0 && entry.needsRefresh(refreshTime)) {
+            refresh(settings, key, entry, loader);
+        }
+        return entry;
+    }
+
+    /**
+     * Return a cached entry without loading it.
+     *
+     * @param settings the site settings.
+     * @param key the cache key.
+     * @return the entry or null, also when it is older than the cache time.
+     */
+    public RelatedEntry getIfPresent(final SiteSettingsPolicy settings, final long key) {
+        final RelatedEntry entry = getSegment(settings).cache.getIfPresent(key);
+        if (entry != null && entry.isOlderThan(getCacheTime(settings))) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Add an entry unless the key is already cached.
+     *
+     * @param settings the site settings.
+     * @param key the cache key.
+     * @param entry the entry.
+     * @return true if the entry has been added.
+     */
+    public boolean putIfAbsent(final SiteSettingsPolicy settings, final long key, final RelatedEntry entry) {
+        return getSegment(settings).cache.asMap().putIfAbsent(key, entry) == null;
+    }
+
+    /**
+     * The keys of the sites with a segment.
+     *
+     * @return a not null collection.
+     */
+    public Collection<String> getSiteKeys() {
+        return Lists.newArrayList(segments.keySet());
+    }
+
+    /**
+     * A copy of the entries of a site.
+     *
+     * @param siteKey the site key.
+     * @return a not null map.
+     */
+    public Map<Long, RelatedEntry> getEntries(final String siteKey) {
+        final Segment segment = segments.get(siteKey);
+        if (segment != null) {
+            return Maps.newHashMap(segment.cache.asMap());
+        }
+        return Maps.newHashMap();
+    }
+
+    /**
+     * Return the cache key of a content.
+     *
+     * @param compiled the site settings.
+     * @param contentKey a string which identify the content.
+     * @return the key.
+     */
+    public static long getKey(final CompiledSettings compiled, final String contentKey) {
+        return KEY_HASH.newHasher()
+                       .putLong(compiled.getFingerprintHash())
+                       .putUnencodedChars(contentKey)
+                       .hash()
+                       .asLong();
+    }
+
+    public int getRefreshingCount() {
+        return refreshing.size();
+    }
+
+    private void refresh(final SiteSettingsPolicy settings,
+                         final long key,
+                         final RelatedEntry entry,
+                         final Callable<RelatedEntry> loader) {
+        if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final long start = System.currentTimeMillis();
+                        final RelatedEntry refreshed = loader.call();
+
+                        // a list read again from the shared results may be the one we
+                        // already have, it is kept but it is not refreshed again until
+                        // the refresh time has passed. The segment is looked up again
+                        // since it may have been rebuilt while loading.
+
+                        if (refreshed.getCreated() > entry.getCreated()) {
+                            refreshed.markRefreshed(start);
+                            getSegment(settings).cache.put(key, refreshed);
+                        } else {
+                            entry.markRefreshed(start);
+                        }
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "cannot refresh " + key + ": " + e.getMessage(), e);
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+
+            // too many refreshes pending, we will try again on the next request.
+
+            refreshing.remove(key);
+        }
+    }
+
+    public void invalidate(final Iterable<Long> keys) {
+        for (final Segment segment : segments.values()) {
+            segment.cache.invalidateAll(keys);
+        }
+    }
+
+    public void invalidateAll() {
+        for (final Segment segment : segments.values()) {
+            segment.cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Return the statistics (hits, misses, load time, evictions) of every site segment.
+     *
+     * @return a map with the site settings content id as key.
+     */
+    public Map<String, CacheStats> getStats() {
+        final Map<String, CacheStats> stats = Maps.newTreeMap();
+        for (final Map.Entry<String, Segment> entry : segments.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().cache.stats());
+        }
+        return stats;
+    }
+
+    private Segment getSegment(final SiteSettingsPolicy settings) {
+        final String siteKey = getSiteKey(settings);
+        final long cacheTime = getCacheTime(settings);
+        final int cacheSize = getCacheSize(settings);
+
+        final Segment segment = segments.get(siteKey);
+        if (segment != null && segment.cacheTime == cacheTime && segment.cacheSize == cacheSize) {
+            return segment;
+        }
+        final Segment newSegment = new Segment(cacheTime, cacheSize, removalListener);
+        if (segment == null) {
+            final Segment existing = segments.putIfAbsent(siteKey, newSegment);
+            if (existing != null) {
+                return existing;
+            }
+        } else if (segments.replace(siteKey, segment, newSegment)) {
+            segment.cache.invalidateAll();
+        } else {
+            return segments.get(siteKey);
+        }
+        LOGGER.log(Level.FINE, "created cache segment for " + siteKey + " (time " + cacheTime + "ms, size " + cacheSize + ")");
+        return newSegment;
+    }
+
+    private String getSiteKey(final SiteSettingsPolicy settings) {
+        return settings.getContentId().getContentId().getContentIdString();
+    }
+
+    long getCacheTime(final SiteSettingsPolicy settings) {
+        try {
+            final long cacheTime = settings.getCacheTime();
+            if (cacheTime > 0) {
+                return cacheTime;
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "invalid cache time: " + e.getMessage());
+        }
+        return DEFAULT_CACHE_TIME;
+    }
+
+    long getRefreshTime(final SiteSettingsPolicy settings) {
+        try {
+            return settings.getRefreshTime();
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "invalid refresh time: " + e.getMessage());
+        }
+        return 0;
+    }
+
+    private int getCacheSize(final SiteSettingsPolicy settings) {
+        try {
+            final int cacheSize = settings.getCacheSize();
+            if (cacheSize > 0) {
+                return cacheSize;
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "invalid cache size: " + e.getMessage());
+        }
+        return DEFAULT_CACHE_SIZE;
+    }
+
+    private static ExecutorService createRefreshExecutor() {
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                REFRESH_THREADS,
+                REFRESH_THREADS,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "autorelated-refresh-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class Segment {
+
+        private final long cacheTime;
+        private final int cacheSize;
+        private final Cache<Long, RelatedEntry> cache;
+
+        Segment(final long cacheTime, final int cacheSize, final RemovalListener<Long, Object> removalListener) {
+            this.cacheTime = cacheTime;
+            this.cacheSize = cacheSize;
+            final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                                                                     .maximumSize(cacheSize)
+                                                                     .expireAfterWrite(cacheTime, TimeUnit.MILLISECONDS)
+                                                                     .recordStats();
+            if (removalListener != null) {
+                this.cache = builder.<Long, RelatedEntry>removalListener(removalListener).build();
+            } else {
+                this.cache = builder.build();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.atex.plugins.autorelated;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.event.ContentEvent;
+import com.polopoly.cm.event.ContentListener;
+import com.polopoly.cm.policy.Policy;
+import com.polopoly.cm.policy.PolicyCMServer;
+
+/**
+ * Listen to the cm content events and evicts the related lists affected
+ * by the changed content: the list of the content itself, the lists which
+ * contains the content and the lists which share an entity with it.
+ *
+ * Events are processed in a background thread since we may need to read
+ * the metadata of the changed content, which is only done for the contents
+ * whose major is listed in <code>autorelated.invalidation.majors</code>
+ * (comma separated, articles by default): the other contents cannot carry
+ * the metadata used to find the related contents.
+ */
+public class RelatedInvalidationListener implements ContentListener {
+
+    private static final Logger LOGGER = Logger.getLogger(RelatedInvalidationListener.class.getName());
+
+    private static final int QUEUE_SIZE = Integer.getInteger("autorelated.invalidation.queueSize", 10000);
+    private static final Set<Integer> METADATA_MAJORS = getMetadataMajors();
+
+    private final RelatedIdsCache cache;
+    private final RelatedReverseIndex index;
+    private final NegativeRelatedCache negativeCache;
+    private final PrecomputedStore precomputedStore;
+    private final SharedRelatedStore sharedStore;
+    private final SearchUtil searchUtil = new SearchUtil();
+    private final AtomicBoolean registered = new AtomicBoolean(false);
+    private final ExecutorService executor;
+
+    private volatile PolicyCMServer cmServer;
+
+    public RelatedInvalidationListener(final RelatedIdsCache cache, final RelatedReverseIndex index) {
+        this(cache, index, null);
+    }
+
+    public RelatedInvalidationListener(final RelatedIdsCache cache,
+                                       final RelatedReverseIndex index,
+                                       final NegativeRelatedCache negativeCache) {
+        this(cache, index, negativeCache, null, null);
+    }
+
+    /**
+     * @param cache the cached lists.
+     * @param index the reverse index of the cached lists.
+     * @param negativeCache the contents without related contents, may be null.
+     * @param precomputedStore the precomputed lists, may be null.
+     * @param sharedStore the lists shared with the other nodes, may be null.
+     */
+    public RelatedInvalidationListener(final RelatedIdsCache cache,
+                                       final RelatedReverseIndex index,
+                                       final NegativeRelatedCache negativeCache,
+                                       final PrecomputedStore precomputedStore,
+                                       final SharedRelatedStore sharedStore) {
+        this.cache = cache;
+        this.index = index;
+        this.negativeCache = negativeCache;
+        this.precomputedStore = precomputedStore;
+        this.sharedStore = sharedStore;
+        this.executor = new ThreadPoolExecutor(
+                1, 1,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "autorelated-invalidation");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start listening to the events of the given cm server, only the first call has effect.
+     *
+     * @param cmServer the cm server.
+     */
+    public void listenTo(final PolicyCMServer cmServer) {
+        if (registered.compareAndSet(false, true)) {
+            this.cmServer = cmServer;
+            cmServer.addContentListener(this);
+            LOGGER.log(Level.INFO, "listening to content events to invalidate related contents");
+        }
+    }
+
+    @Override
+    public void contentChanged(final ContentEvent event) {
+        final ContentId eventId = event.getContentId();
+        if (eventId == null) {
+            return;
+        }
+        final ContentId contentId = eventId.getContentId();
+
+        // it is cheap, so it is done right away: the next request of the
+        // content will look at its new version.
+
+        if (negativeCache != null) {
+            negativeCache.remove(contentId);
+        }
+        CompiledSettings.invalidate(contentId);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    invalidate(contentId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+
+            // we cannot keep up with the events, the only safe thing to do is to drop
+            // the cached lists; the precomputed ones are still used (they are stale
+            // anyway, up to the next run of the job) but the next run will be a full one.
+
+            LOGGER.log(Level.WARNING, "too many content events, invalidating all the cached related contents");
+            cache.invalidateAll();
+            if (negativeCache != null) {
+                negativeCache.clear();
+            }
+            if (precomputedStore != null) {
+                precomputedStore.markDirty(System.currentTimeMillis());
+            }
+        }
+    }
+
+    void invalidate(final ContentId contentId) {
+        final Set<Long> keys = index.getAffectedKeys(contentId, getEntityKeys(contentId));
+
+        // the precomputed lists are not in the cache, so they are invalidated by the
+        // content they belong to.
+
+        final PrecomputedStore store = precomputedStore;
+        if (store != null) {
+            store.invalidate(contentId);
+            for (final long key : keys) {
+                final RelatedReverseIndex.Registration registration = index.getRegistration(key);
+                if (registration != null) {
+                    final long source = registration.getSource();
+                    store.invalidate(new ContentId((int) (source >>> 32), (int) source));
+                }
+            }
+        }
+        if (keys.size() > 0) {
+            LOGGER.log(Level.FINE, "content " + contentId.getContentIdString() + " changed, invalidating " + keys.size() + " related lists");
+            cache.invalidate(keys);
+
+            // the other nodes may not know these keys, so they are removed from the
+            // shared store too or they would be loaded again from there.
+
+            if (sharedStore != null) {
+                sharedStore.remove(keys);
+            }
+        }
+    }
+
+    private List<String> getEntityKeys(final ContentId contentId) {
+        final List<String> entities = Lists.newArrayList();
+        final PolicyCMServer server = cmServer;
+        if (server != null && METADATA_MAJORS.contains(contentId.getMajor())) {
+            try {
+                final Policy policy = server.getPolicy(contentId);
+                entities.addAll(searchUtil.getEntityKeys(searchUtil.getMetadata(policy)));
+            } catch (CMException e) {
+
+                // the content may have been removed, the lists containing it are
+                // found by the content id anyway.
+
+                LOGGER.log(Level.FINE, "cannot get metadata for " + contentId.getContentIdString() + ": " + e.getMessage());
+            }
+        }
+        return entities;
+    }
+
+    private static Set<Integer> getMetadataMajors() {
+        final Set<Integer> majors = Sets.newHashSet();
+        for (final String major : System.getProperty("autorelated.invalidation.majors", "1").split(",")) {
+            if (!major.trim().isEmpty()) {
+                majors.add(Integer.valueOf(major.trim()));
+            }
+        }
+        return majors;
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.atex.plugins.autorelated;
+
+import com.polopoly.cm.ContentId;
+
+/**
+ * What the related list template shows of a related content, it is read
+ * once and cached (see {@link RelatedItemCache}) so the template does
+ * not need to access the cm server.
+ */
+public class RelatedItem {
+
+    private final ContentId contentId;
+    private final String title;
+    private final ContentId parentId;
+    private final String sectionName;
+
+    public RelatedItem(final ContentId contentId,
+                       final String title,
+                       final ContentId parentId,
+                       final String sectionName) {
+        this.contentId = contentId;
+        this.title = title;
+        this.parentId = parentId;
+        this.sectionName = sectionName;
+    }
+
+    public ContentId getContentId() {
+        return contentId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * The security parent of the content, usually its section.
+     *
+     * @return the id or null.
+     */
+    public ContentId getParentId() {
+        return parentId;
+    }
+
+    public String getSectionName() {
+        return sectionName;
+    }
+
+}
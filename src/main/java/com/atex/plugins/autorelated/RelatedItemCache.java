@@ -0,0 +1,219 @@
+package com.atex.plugins.autorelated;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.client.ContentRead;
+import com.polopoly.cm.event.ContentEvent;
+import com.polopoly.cm.event.ContentListener;
+import com.polopoly.cm.policy.PolicyCMServer;
+
+/**
+ * Cache of the {@link RelatedItem} of the related contents.
+ *
+ * The items missing from the cache are read in parallel on a small bounded
+ * executor. A changed content is evicted together with the items of the
+ * contents it is the parent of, so a renamed section shows up at once: the
+ * cached items are indexed by their parent so an event does not need to
+ * look at the whole cache.
+ */
+public class RelatedItemCache implements ContentListener {
+
+    private static final Logger LOGGER = Logger.getLogger(RelatedItemCache.class.getName());
+
+    private static final int CACHE_SIZE = Integer.getInteger("autorelated.items.cacheSize", 5000);
+    private static final long CACHE_TIME_SEC = Long.getLong("autorelated.items.cacheTimeSec", 600);
+    private static final int THREADS = Integer.getInteger("autorelated.items.threads", 4);
+    private static final int QUEUE_SIZE = Integer.getInteger("autorelated.items.queueSize", 200);
+
+    private static final RelatedItemCache INSTANCE = new RelatedItemCache();
+
+    private final Cache<ContentId, RelatedItem> items;
+    private final SetMultimap<ContentId, ContentId> children =
+            Multimaps.synchronizedSetMultimap(HashMultimap.<ContentId, ContentId>create());
+    private final AtomicBoolean registered = new AtomicBoolean(false);
+    private final ExecutorService executor;
+
+    public RelatedItemCache() {
+        this(CACHE_SIZE, TimeUnit.SECONDS.toMillis(CACHE_TIME_SEC));
+    }
+
+    public RelatedItemCache(final int cacheSize, final long cacheTime) {
+        this.items = CacheBuilder.newBuilder()
+                                 .maximumSize(cacheSize)
+                                 .expireAfterWrite(cacheTime, TimeUnit.MILLISECONDS)
+                                 .removalListener(new RemovalListener<ContentId, RelatedItem>() {
+                                     @Override
+                                     public void onRemoval(final RemovalNotification<ContentId, RelatedItem> notification) {
+                                         unindex(notification.getValue());
+                                     }
+                                 })
+                                 .build();
+        this.executor = createExecutor();
+    }
+
+    public static RelatedItemCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start evicting the changed contents, only the first call has effect.
+     *
+     * @param cmServer the cm server.
+     */
+    public void listenTo(final PolicyCMServer cmServer) {
+        if (registered.compareAndSet(false, true)) {
+            cmServer.addContentListener(this);
+        }
+    }
+
+    /**
+     * Return the items of the given contents, the contents which cannot be read are skipped.
+     *
+     * @param cmServer the cm server.
+     * @param ids the contents.
+     * @return a not null list, in the same order of the given ids.
+     */
+    public List<RelatedItem> getItems(final PolicyCMServer cmServer, final List<ContentId> ids) {
+        final Map<ContentId, RelatedItem> found = Maps.newHashMap();
+        final Map<ContentId, Future<RelatedItem>> missing = Maps.newLinkedHashMap();
+        for (final ContentId id : ids) {
+            final ContentId contentId = id.getContentId();
+            final RelatedItem item = items.getIfPresent(contentId);
+            if (item != null) {
+                found.put(contentId, item);
+            } else if (!missing.containsKey(contentId)) {
+                missing.put(contentId, executor.submit(new Callable<RelatedItem>() {
+                    @Override
+                    public RelatedItem call() throws Exception {
+                        return loadItem(cmServer, contentId);
+                    }
+                }));
+            }
+        }
+        for (final Map.Entry<ContentId, Future<RelatedItem>> entry : missing.entrySet()) {
+            try {
+                final RelatedItem item = entry.getValue().get();
+                if (item.getParentId() != null) {
+                    children.put(item.getParentId(), entry.getKey());
+                }
+                items.put(entry.getKey(), item);
+                found.put(entry.getKey(), item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.log(Level.WARNING, "interrupted while reading related contents");
+                break;
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.FINE, "cannot read " + entry.getKey().getContentIdString() + ": " + e.getMessage());
+            }
+        }
+        final List<RelatedItem> result = Lists.newArrayListWithCapacity(found.size());
+        for (final ContentId id : ids) {
+            final RelatedItem item = found.get(id.getContentId());
+            if (item != null) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    public void invalidateAll() {
+        items.invalidateAll();
+    }
+
+    public long size() {
+        return items.size();
+    }
+
+    @Override
+    public void contentChanged(final ContentEvent event) {
+        final ContentId eventId = event.getContentId();
+        if (eventId == null) {
+            return;
+        }
+        final ContentId contentId = eventId.getContentId();
+        items.invalidate(contentId);
+        final List<ContentId> childIds;
+        synchronized (children) {
+            childIds = Lists.newArrayList(children.get(contentId));
+        }
+        if (!childIds.isEmpty()) {
+            items.invalidateAll(childIds);
+        }
+    }
+
+    protected RelatedItem loadItem(final PolicyCMServer cmServer, final ContentId contentId) throws CMException {
+        final ContentRead content = cmServer.getContent(contentId);
+        final ContentId parentId = content.getSecurityParentId();
+        String sectionName = null;
+        if (parentId != null) {
+            try {
+                sectionName = cmServer.getContent(parentId).getName();
+            } catch (CMException e) {
+                LOGGER.log(Level.FINE, "cannot read section " + parentId.getContentIdString() + ": " + e.getMessage());
+            }
+        }
+        return new RelatedItem(
+                contentId,
+                content.getName(),
+                (parentId != null) ? parentId.getContentId() : null,
+                sectionName);
+    }
+
+    /**
+     * Forget the parent of a removed item, unless the item has been cached again with the same parent.
+     */
+    private void unindex(final RelatedItem item) {
+        if (item == null || item.getParentId() == null) {
+            return;
+        }
+        final RelatedItem current = items.getIfPresent(item.getContentId());
+        if (current == null || !item.getParentId().equals(current.getParentId())) {
+            children.remove(item.getParentId(), item.getContentId());
+        }
+    }
+
+    private static ExecutorService createExecutor() {
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                THREADS,
+                THREADS,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "autorelated-items-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+}
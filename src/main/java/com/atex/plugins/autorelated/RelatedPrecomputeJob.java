@@ -0,0 +1,177 @@
+package com.atex.plugins.autorelated;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.solr.client.solrj.SolrQuery;
+
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.policy.Policy;
+import com.polopoly.cm.policy.PolicyCMServer;
+import com.polopoly.search.solr.SearchClient;
+import com.polopoly.search.solr.SearchResult;
+import com.polopoly.search.solr.SearchResultPage;
+
+/**
+ * Batch job which calculates the related contents of all the contents of a
+ * site and writes them in a {@link PrecomputedStore}, the front end will use
+ * the stored lists instead of searching.
+ *
+ * The contents are found using the site sources decorators, the lists are
+ * calculated with the same {@link RelatedCalculator} used by the front end.
+ * An incremental run only process the contents modified since the last run.
+ * The solr searches of the job have their own circuit breaker and fetch
+ * sizes, so a slow run does not suspend the searches of the front end.
+ * A run which does not complete within <code>autorelated.precompute.timeoutMin</code>
+ * minutes is stopped, the lists calculated so far are merged in the store
+ * but the checkpoint is not moved, so the next incremental run will process
+ * again the contents which have been skipped.
+ *
+ * The job does not schedule itself, it is meant to be run by the project
+ * scheduler (i.e. a cron servlet or an application component).
+ */
+public class RelatedPrecomputeJob {
+
+    private static final Logger LOGGER = Logger.getLogger(RelatedPrecomputeJob.class.getName());
+
+    private static final String MODIFIED_FIELD = System.getProperty("autorelated.precompute.modifiedField", "modifiedDate");
+    private static final int PAGE_SIZE = 500;
+    private static final long TIMEOUT_MIN = Long.getLong("autorelated.precompute.timeoutMin", 60);
+
+    private final PolicyCMServer cmServer;
+    private final SearchClient searchClient;
+    private final PrecomputedStore store;
+    private final RelatedCalculator calculator;
+    private final int parallelism;
+
+    public RelatedPrecomputeJob(final PolicyCMServer cmServer,
+                                final SearchClient searchClient,
+                                final PrecomputedStore store,
+                                final int parallelism) {
+        this(cmServer, searchClient, store, createCalculator(new SearchCircuitBreaker(), new AdaptiveFetchSize()), parallelism);
+    }
+
+    public RelatedPrecomputeJob(final PolicyCMServer cmServer,
+                                final SearchClient searchClient,
+                                final PrecomputedStore store,
+                                final RelatedCalculator calculator,
+                                final int parallelism) {
+        this.cmServer = cmServer;
+        this.searchClient = searchClient;
+        this.store = store;
+        this.calculator = calculator;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Calculate the related lists for the site of the given settings.
+     *
+     * @param settings the site settings.
+     * @param incremental if true only the contents modified since the last run are processed.
+     * @return the number of processed contents.
+     * @throws CMException if the settings cannot be read.
+     * @throws IOException if the store cannot be written.
+     */
+    public int run(final SiteSettingsPolicy settings, final boolean incremental) throws CMException, IOException {
+        final long start = System.currentTimeMillis();
+        final CompiledSettings compiled = CompiledSettings.of(settings);
+        final long checkpoint = incremental ? store.getCheckpoint(compiled) : 0;
+
+        final Map<ContentId, PrecomputedStore.Entry> entries = new ConcurrentHashMap<>();
+        final AtomicInteger failures = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        final Semaphore inFlight = new Semaphore(parallelism * 2);
+        final boolean completed;
+        try {
+            final SearchResult searchResult = searchClient.search(getContentsQuery(settings, checkpoint), PAGE_SIZE);
+            for (final SearchResultPage page : searchResult) {
+                for (final ContentId id : page.getHits()) {
+                    inFlight.acquire();
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                final long created = System.currentTimeMillis();
+                                final Policy policy = cmServer.getPolicy(id);
+                                final RelatedCalculator.Result result = calculator.calculate(searchClient, settings, policy);
+                                entries.put(id.getContentId(), new PrecomputedStore.Entry(result.getIds(), result.getEntities(), created));
+                            } catch (CMException | RuntimeException e) {
+                                failures.incrementAndGet();
+                                LOGGER.log(Level.WARNING, "cannot calculate related for " + id.getContentIdString() + ": " + e.getMessage());
+                            } finally {
+                                inFlight.release();
+                            }
+                        }
+                    });
+                }
+            }
+            executor.shutdown();
+            completed = executor.awaitTermination(TIMEOUT_MIN, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("job interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (completed) {
+            store.write(compiled, entries, start, checkpoint > 0);
+        } else {
+            LOGGER.log(Level.WARNING, String.format("the job did not complete in %d minutes, the checkpoint is not updated",
+                    TIMEOUT_MIN));
+            store.write(compiled, entries, store.getCheckpoint(compiled), true);
+        }
+        LOGGER.log(Level.INFO, String.format("calculated related for %d contents (%d failures) in %d ms",
+                entries.size(), failures.get(), System.currentTimeMillis() - start));
+        return entries.size();
+    }
+
+    private static RelatedCalculator createCalculator(final SearchCircuitBreaker circuitBreaker,
+                                                      final AdaptiveFetchSize fetchSize) {
+        return new RelatedCalculator() {
+            @Override
+            protected RelatedEngine getEngine(final SearchClient searchClient,
+                                              final SiteSettingsPolicy settings,
+                                              final PolicyCMServer cmServer) {
+                final RelatedEngine engine = super.getEngine(searchClient, settings, cmServer);
+                if (!(engine instanceof SolrRelatedEngine)) {
+                    return engine;
+                }
+                return new SolrRelatedEngine(searchClient) {
+                    @Override
+                    protected SearchCircuitBreaker getCircuitBreaker() {
+                        return circuitBreaker;
+                    }
+
+                    @Override
+                    protected AdaptiveFetchSize getFetchSize() {
+                        return fetchSize;
+                    }
+                };
+            }
+        };
+    }
+
+    protected SolrQuery getContentsQuery(final SiteSettingsPolicy settings, final long checkpoint) throws CMException {
+        final SolrQuery query = CompiledSettings.of(settings).getDecorators().decorate(new SolrQuery("*:*"));
+        if (checkpoint > 0) {
+            final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            query.addFilterQuery(MODIFIED_FIELD + ":[" + format.format(new Date(checkpoint)) + " TO *]");
+        }
+        return query;
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Set;
+
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.policy.PolicyCMServer;
+import com.polopoly.metadata.Metadata;
+import com.polopoly.search.solr.QueryDecorator;
+
+/**
+ * The parameters used by a {@link RelatedEngine} to find the related contents.
+ */
+public class RelatedRequest {
+
+    private final PolicyCMServer cmServer;
+    private final String siteKey;
+    private final ContentId contentId;
+    private final String inputTemplate;
+    private final Metadata metadata;
+    private final String minimumMatch;
+    private final int maxResults;
+    private final Set<ContentId> excludedIds;
+    private final QueryDecorator decorators;
+    private final long searchTimeout;
+
+    public RelatedRequest(final PolicyCMServer cmServer,
+                          final String siteKey,
+                          final ContentId contentId,
+                          final String inputTemplate,
+                          final Metadata metadata,
+                          final String minimumMatch,
+                          final int maxResults,
+                          final Set<ContentId> excludedIds,
+                          final QueryDecorator decorators,
+                          final long searchTimeout) {
+        this.cmServer = cmServer;
+        this.siteKey = siteKey;
+        this.contentId = contentId;
+        this.inputTemplate = inputTemplate;
+        this.metadata = metadata;
+        this.minimumMatch = minimumMatch;
+        this.maxResults = maxResults;
+        this.excludedIds = excludedIds;
+        this.decorators = decorators;
+        this.searchTimeout = searchTimeout;
+    }
+
+    public PolicyCMServer getCMServer() {
+        return cmServer;
+    }
+
+    /**
+     * The key of the site, see {@link CompiledSettings#getSiteKey()}.
+     *
+     * @return a not null string.
+     */
+    public String getSiteKey() {
+        return siteKey;
+    }
+
+    /**
+     * The content whose related contents are searched.
+     *
+     * @return the content or null when the results are shared by all the contents
+     *         with the same metadata (see {@link RelatedCalculator.SharedResults}).
+     */
+    public ContentId getContentId() {
+        return contentId;
+    }
+
+    public String getInputTemplate() {
+        return inputTemplate;
+    }
+
+    /**
+     * The metadata of the content, already filtered using the site settings.
+     *
+     * @return a not null metadata.
+     */
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    public String getMinimumMatch() {
+        return minimumMatch;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    /**
+     * The contents that must not be returned (the content itself, when given, is always excluded).
+     *
+     * @return a not null set.
+     */
+    public Set<ContentId> getExcludedIds() {
+        return excludedIds;
+    }
+
+    /**
+     * The decorators configured in the site settings, including the exclusions.
+     *
+     * @return a not null decorator.
+     */
+    public QueryDecorator getDecorators() {
+        return decorators;
+    }
+
+    /**
+     * How long the engine may wait for the search, see {@link SiteSettingsPolicy#getSearchTimeout()}.
+     *
+     * @return the time in milliseconds, 0 or less means no limit.
+     */
+    public long getSearchTimeout() {
+        return searchTimeout;
+    }
+
+}
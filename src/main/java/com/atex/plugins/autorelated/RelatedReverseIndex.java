@@ -0,0 +1,214 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.polopoly.cm.ContentId;
+
+/**
+ * Reverse index of the related ids cache.
+ *
+ * For every cache key it remembers the content the list has been calculated
+ * for, the contents in the list and the metadata entities used by the query,
+ * so when a content changes we can find the only cache entries that may be
+ * affected by the change.
+ *
+ * The index listen to the cache removals so it never holds more keys than
+ * the cache itself. Contents are kept as packed longs (see {@link RelatedEntry#toKey(ContentId)}),
+ * the cache keys of a content or an entity are kept in a {@link LongHashSet}
+ * and entity keys are interned, so the index does not retain any object of
+ * the calculation and it does not box the keys of the sets.
+ */
+public class RelatedReverseIndex implements RemovalListener<Long, Object> {
+
+    private static final int MAX_KEYS_PER_ENTITY = Integer.getInteger("autorelated.invalidation.maxKeysPerEntity", 500);
+
+    private final Map<Long, Registration> byKey = Maps.newHashMap();
+    private final Map<Long, LongHashSet> byContent = Maps.newHashMap();
+    private final Map<String, LongHashSet> byEntity = Maps.newHashMap();
+    private final Interner<String> entityInterner = Interners.newWeakInterner();
+
+    private final int maxKeysPerEntity;
+
+    public RelatedReverseIndex() {
+        this(MAX_KEYS_PER_ENTITY);
+    }
+
+    public RelatedReverseIndex(final int maxKeysPerEntity) {
+        this.maxKeysPerEntity = maxKeysPerEntity;
+    }
+
+    /**
+     * Register a freshly calculated cache entry.
+     *
+     * @param key the cache key.
+     * @param entry the cached value, used to recognize the entry when it will be removed.
+     * @param source the content the related list has been calculated for.
+     * @param entities the entity keys (see {@link SearchUtil#getEntityKey(String, String)}) used to calculate the list.
+     */
+    public synchronized void register(final long key,
+                                      final RelatedEntry entry,
+                                      final ContentId source,
+                                      final Collection<String> entities) {
+        unregister(key, null);
+        final String[] internedEntities = new String[entities.size()];
+        int idx = 0;
+        for (final String entity : entities) {
+            internedEntities[idx++] = entityInterner.intern(entity);
+        }
+        final Registration registration = new Registration(entry, RelatedEntry.toKey(source), internedEntities);
+        byKey.put(key, registration);
+        add(byContent, registration.source, key);
+        for (int i = 0; i < entry.size(); i++) {
+            add(byContent, entry.getKey(i), key);
+        }
+        for (final String entity : registration.entities) {
+            add(byEntity, entity, key);
+        }
+    }
+
+    /**
+     * Return the cache keys which may be affected by a change of the given content.
+     *
+     * @param contentId the changed content.
+     * @param entities the entity keys of the changed content, they are used to find the lists
+     *                 that may now include the content.
+     * @return a not null collection of cache keys.
+     */
+    public synchronized Set<Long> getAffectedKeys(final ContentId contentId, final Collection<String> entities) {
+        final Set<Long> keys = Sets.newHashSet();
+        final LongHashSet contentKeys = byContent.get(RelatedEntry.toKey(contentId));
+        if (contentKeys != null) {
+            addAll(keys, contentKeys);
+        }
+        for (final String entity : entities) {
+            final LongHashSet entityKeys = byEntity.get(entity);
+
+            // entities used by too many lists are too generic to make any
+            // difference, those lists will be refreshed when they expire.
+
+            if (entityKeys != null && entityKeys.size() <= maxKeysPerEntity) {
+                addAll(keys, entityKeys);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Return the registration of a key.
+     *
+     * @param key the cache key.
+     * @return the registration or null.
+     */
+    public synchronized Registration getRegistration(final long key) {
+        return byKey.get(key);
+    }
+
+    public synchronized int size() {
+        return byKey.size();
+    }
+
+    @Override
+    public void onRemoval(final RemovalNotification<Long, Object> notification) {
+        if (notification.getKey() != null) {
+            synchronized (this) {
+                unregister(notification.getKey(), notification.getValue());
+            }
+        }
+    }
+
+    private void unregister(final long key, final Object value) {
+        final Registration registration = byKey.get(key);
+
+        // the removal of an old value may be notified after the new value has been
+        // registered, in that case we must keep the registration.
+
+        if (registration == null || (value != null && registration.entry != value)) {
+            return;
+        }
+        byKey.remove(key);
+        remove(byContent, registration.source, key);
+        for (int i = 0; i < registration.entry.size(); i++) {
+            remove(byContent, registration.entry.getKey(i), key);
+        }
+        for (final String entity : registration.entities) {
+            remove(byEntity, entity, key);
+        }
+    }
+
+    private static <K> void add(final Map<K, LongHashSet> map, final K k, final long key) {
+
+        // zero cannot be stored in the set, such a key is not indexed and
+        // its list will be refreshed when it expires.
+
+        if (key == 0) {
+            return;
+        }
+        LongHashSet keys = map.get(k);
+        if (keys == null) {
+            keys = new LongHashSet(1);
+            map.put(k, keys);
+        }
+        keys.add(key);
+    }
+
+    private static <K> void remove(final Map<K, LongHashSet> map, final K k, final long key) {
+        final LongHashSet keys = map.get(k);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                map.remove(k);
+            }
+        }
+    }
+
+    private static void addAll(final Set<Long> keys, final LongHashSet values) {
+        for (final long value : values.toArray()) {
+            keys.add(value);
+        }
+    }
+
+    /**
+     * What is known about a cache entry.
+     */
+    public static class Registration {
+
+        private final RelatedEntry entry;
+        private final long source;
+        private final String[] entities;
+
+        Registration(final RelatedEntry entry, final long source, final String[] entities) {
+            this.entry = entry;
+            this.source = source;
+            this.entities = entities;
+        }
+
+        public RelatedEntry getEntry() {
+            return entry;
+        }
+
+        /**
+         * The content the list has been calculated for, see {@link RelatedEntry#toKey(ContentId)}.
+         *
+         * @return the packed content id.
+         */
+        public long getSource() {
+            return source;
+        }
+
+        public List<String> getEntities() {
+            return Collections.unmodifiableList(Arrays.asList(entities));
+        }
+    }
+
+}
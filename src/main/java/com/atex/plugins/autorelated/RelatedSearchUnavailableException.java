@@ -0,0 +1,20 @@
+package com.atex.plugins.autorelated;
+
+import com.polopoly.cm.client.CMException;
+
+/**
+ * The related search has not been done, either because it did not complete
+ * within the site latency budget or because the circuit breaker of the
+ * site is open (see {@link SearchCircuitBreaker}).
+ */
+public class RelatedSearchUnavailableException extends CMException {
+
+    public RelatedSearchUnavailableException(final String message) {
+        super(message);
+    }
+
+    public RelatedSearchUnavailableException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+
+}
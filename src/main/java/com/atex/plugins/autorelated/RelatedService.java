@@ -0,0 +1,542 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.policy.Policy;
+import com.polopoly.cm.policy.PolicyCMServer;
+import com.polopoly.search.solr.SearchClient;
+
+/**
+ * Give the related contents of one or many contents.
+ *
+ * This is the entry point used by the {@link AutoRelatedController} and it
+ * can be used by listing pages, feeds and apps which needs the related
+ * contents of many articles at once: the lists are taken from the same
+ * cache used by the front end and the missing ones are calculated
+ * concurrently on a small bounded executor.
+ */
+public class RelatedService {
+
+    private static final Logger LOGGER = Logger.getLogger(RelatedService.class.getName());
+
+    private static final int BULK_THREADS = Integer.getInteger("autorelated.bulk.threads", 8);
+    private static final int BULK_QUEUE_SIZE = Integer.getInteger("autorelated.bulk.queueSize", 200);
+    private static final int SNAPSHOT_INTERVAL_SEC = Integer.getInteger("autorelated.snapshot.intervalSec", 300);
+
+    static final RelatedReverseIndex REVERSE_INDEX = new RelatedReverseIndex();
+    static final RelatedIdsCache IDS_CACHE = new RelatedIdsCache(REVERSE_INDEX);
+    static final RelatedCoalescer COALESCER = createCoalescer();
+    static final NegativeRelatedCache NEGATIVE_CACHE = new NegativeRelatedCache();
+
+    private static final RelatedInvalidationListener INVALIDATION_LISTENER = new RelatedInvalidationListener(
+            IDS_CACHE,
+            REVERSE_INDEX,
+            NEGATIVE_CACHE,
+            PrecomputedStore.getDefault(),
+            SharedRelatedStores.getDefault());
+    private static final ExecutorService BULK_EXECUTOR = createBulkExecutor();
+    private static final LiveContentResolver LIVE_CONTENT_RESOLVER = new LiveContentResolver();
+    private static final RelatedService INSTANCE = new RelatedService(new RelatedCalculator());
+
+    // the sites of the snapshot read at startup which have not been requested yet
+    // and the fingerprints of the sites requested so far, used to write the next one.
+
+    private static final RelatedCacheSnapshot SNAPSHOT = RelatedCacheSnapshot.getDefault();
+    private static final ConcurrentMap<String, RelatedCacheSnapshot.Site> WARM_SITES = readSnapshot();
+    private static final ConcurrentMap<String, Long> SITE_FINGERPRINTS = new ConcurrentHashMap<>();
+
+    static {
+        AutoRelatedMetrics.getInstance().setIdsCache(IDS_CACHE);
+        scheduleSnapshot();
+    }
+
+    private final RelatedCalculator calculator;
+
+    public RelatedService(final RelatedCalculator calculator) {
+        this.calculator = calculator;
+    }
+
+    public static RelatedService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start evicting the cached lists when contents change, only the first call has effect.
+     *
+     * @param cmServer the cm server.
+     */
+    public void listenTo(final PolicyCMServer cmServer) {
+        INVALIDATION_LISTENER.listenTo(cmServer);
+    }
+
+    /**
+     * Check if a content is known to have no related contents, it does not
+     * need to load the content so it should be called first.
+     *
+     * @param settings the site settings.
+     * @param contentId the content.
+     * @return true if the content cannot have related contents.
+     * @throws CMException if the settings cannot be read.
+     */
+    public boolean hasNoRelated(final SiteSettingsPolicy settings, final ContentId contentId) throws CMException {
+        final NegativeRelatedCache negativeCache = getNegativeCache();
+        return negativeCache != null && negativeCache.contains(CompiledSettings.of(settings), contentId.getContentId());
+    }
+
+    /**
+     * Get the related contents of a content.
+     *
+     * @param searchClient the search client.
+     * @param settings the site settings.
+     * @param policy the content.
+     * @return a not null list.
+     * @throws CMException if the list cannot be calculated.
+     */
+    public List<ContentId> getRelated(final SearchClient searchClient,
+                                      final SiteSettingsPolicy settings,
+                                      final Policy policy) throws CMException {
+
+        return getRelated(policy.getCMServer(), searchClient, settings, policy.getContentId().getContentId(), new Callable<Policy>() {
+            @Override
+            public Policy call() {
+                return policy;
+            }
+        });
+    }
+
+    /**
+     * Get the related contents of a content, the content is loaded only when
+     * its list is not cached.
+     *
+     * @param cmServer the cm server.
+     * @param searchClient the search client.
+     * @param settings the site settings.
+     * @param contentId the content.
+     * @return a not null list.
+     * @throws CMException if the list cannot be calculated.
+     */
+    public List<ContentId> getRelated(final PolicyCMServer cmServer,
+                                      final SearchClient searchClient,
+                                      final SiteSettingsPolicy settings,
+                                      final ContentId contentId) throws CMException {
+
+        // the cached lists do not depend on the version of the content, they are
+        // evicted by the content events.
+
+        listenTo(cmServer);
+        return getRelated(cmServer, searchClient, settings, contentId.getContentId(), new Callable<Policy>() {
+            @Override
+            public Policy call() throws CMException {
+                return cmServer.getPolicy(contentId);
+            }
+        });
+    }
+
+    /**
+     * Get the related contents of many contents, the cached lists are returned
+     * immediately while the missing ones are calculated concurrently.
+     *
+     * @param cmServer the cm server.
+     * @param searchClient the search client.
+     * @param settings the site settings.
+     * @param contentIds the contents.
+     * @return a map with the related contents of every content, in the same order of the
+     *         given ids, the contents which cannot be read are not in the map.
+     * @throws CMException if the settings cannot be read.
+     */
+    public Map<ContentId, List<ContentId>> getRelated(final PolicyCMServer cmServer,
+                                                      final SearchClient searchClient,
+                                                      final SiteSettingsPolicy settings,
+                                                      final Collection<ContentId> contentIds) throws CMException {
+
+        listenTo(cmServer);
+        final CompiledSettings compiled = CompiledSettings.of(settings);
+        warmUp(settings, compiled);
+        final RelatedIdsCache cache = getIdsCache();
+        final long refreshTime = cache.getRefreshTime(settings);
+        final Map<ContentId, List<ContentId>> results = Maps.newLinkedHashMap();
+        final Map<ContentId, Future<List<ContentId>>> misses = Maps.newLinkedHashMap();
+
+        for (final ContentId id : contentIds) {
+            final ContentId contentId = id.getContentId();
+            if (results.containsKey(contentId) || misses.containsKey(contentId)) {
+                continue;
+            }
+
+            // the entries which must be refreshed go through the normal path
+            // which will schedule the refresh.
+
+            final RelatedEntry entry = cache.getIfPresent(settings, RelatedIdsCache.getKey(compiled, getIdsCacheKey(contentId)));
+            if (entry != null && !(refreshTime > 0 && entry.isOlderThan(refreshTime))) {
+                results.put(contentId, entry.getIds());
+            } else {
+
+                // keep the map in the same order of the given ids.
+
+                results.put(contentId, null);
+                misses.put(contentId, BULK_EXECUTOR.submit(new Callable<List<ContentId>>() {
+                    @Override
+                    public List<ContentId> call() throws Exception {
+                        return getRelated(cmServer, searchClient, settings, contentId);
+                    }
+                }));
+            }
+        }
+
+        for (final Map.Entry<ContentId, Future<List<ContentId>>> miss : misses.entrySet()) {
+            try {
+                results.put(miss.getKey(), miss.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (final Future<List<ContentId>> future : misses.values()) {
+                    future.cancel(true);
+                }
+                throw new CMException(e);
+            } catch (ExecutionException e) {
+
+                // the content may not exist anymore, the other lists are still returned.
+
+                LOGGER.log(Level.WARNING, "cannot get related of " + miss.getKey().getContentIdString() + ": " + e.getMessage(), e);
+                results.remove(miss.getKey());
+            }
+        }
+        return results;
+    }
+
+    protected RelatedIdsCache getIdsCache() {
+        return IDS_CACHE;
+    }
+
+    /**
+     * The part of the cache key which identifies the content, the lists of a content
+     * are evicted by the content events so the version is not part of it.
+     *
+     * @param contentId the content.
+     * @return the key.
+     */
+    protected String getIdsCacheKey(final ContentId contentId) {
+        return contentId.getContentId().getContentIdString();
+    }
+
+    protected PrecomputedStore getPrecomputedStore() {
+        return PrecomputedStore.getDefault();
+    }
+
+    protected NegativeRelatedCache getNegativeCache() {
+        return NEGATIVE_CACHE;
+    }
+
+    /**
+     * The coalescer used to share the related lists with the other front nodes.
+     *
+     * @return the coalescer or null if no shared store has been configured.
+     */
+    protected RelatedCoalescer getCoalescer() {
+        return COALESCER;
+    }
+
+    /**
+     * Remember the fingerprint of the site for the next snapshot and, the first time
+     * a site is requested, load its lists from the snapshot read at startup.
+     */
+    private void warmUp(final SiteSettingsPolicy settings, final CompiledSettings compiled) {
+        final String siteKey = compiled.getSiteKey();
+        final long fingerprintHash = compiled.getFingerprintHash();
+        final Long previous = SITE_FINGERPRINTS.get(siteKey);
+        if (previous == null || previous != fingerprintHash) {
+            SITE_FINGERPRINTS.put(siteKey, fingerprintHash);
+        }
+        if (WARM_SITES.isEmpty()) {
+            return;
+        }
+        final RelatedCacheSnapshot.Site site = WARM_SITES.remove(siteKey);
+        if (site == null) {
+            return;
+        }
+
+        // the lists calculated with different settings would not be found anyway.
+
+        if (site.getFingerprintHash() != fingerprintHash) {
+            LOGGER.log(Level.INFO, "settings of site " + siteKey + " changed, ignoring its snapshot");
+            return;
+        }
+        // the content events received while the node was down are lost, so a list is
+        // loaded only if it would not have been refreshed yet. The loaded lists keep
+        // their creation time and they expire from it.
+
+        final RelatedIdsCache cache = getIdsCache();
+        final long cacheTime = cache.getCacheTime(settings);
+        final long refreshTime = cache.getRefreshTime(settings);
+        final long maxAge = (refreshTime > 0) ? Math.min(refreshTime, cacheTime) : cacheTime;
+        int count = 0;
+        for (final RelatedCacheSnapshot.Item item : site.getItems()) {
+            final RelatedEntry entry = item.getEntry();
+            if (entry.isOlderThan(maxAge)) {
+                continue;
+            }
+            if (cache.putIfAbsent(settings, item.getKey(), entry)) {
+                final long source = item.getSource();
+                REVERSE_INDEX.register(
+                        item.getKey(),
+                        entry,
+                        new ContentId((int) (source >>> 32), (int) source),
+                        item.getEntities());
+                count++;
+            }
+        }
+        LOGGER.log(Level.INFO, "loaded " + count + " related lists of site " + siteKey + " from " + SNAPSHOT.getFile());
+    }
+
+    private List<ContentId> getRelated(final PolicyCMServer cmServer,
+                                       final SearchClient searchClient,
+                                       final SiteSettingsPolicy settings,
+                                       final ContentId contentId,
+                                       final Callable<Policy> policyLoader) throws CMException {
+
+        final CompiledSettings compiled = CompiledSettings.of(settings);
+        warmUp(settings, compiled);
+        final long cacheKey = RelatedIdsCache.getKey(compiled, getIdsCacheKey(contentId));
+        try {
+            return getIdsCache().get(settings, cacheKey, new Callable<RelatedEntry>() {
+                @Override
+                public RelatedEntry call() throws Exception {
+                    return getResults(cmServer, searchClient, settings, contentId, policyLoader, cacheKey);
+                }
+            }).getIds();
+        } catch (ExecutionException e) {
+            throw toCMException(e);
+        }
+    }
+
+    private RelatedEntry getResults(final PolicyCMServer cmServer,
+                                    final SearchClient searchClient,
+                                    final SiteSettingsPolicy settings,
+                                    final ContentId contentId,
+                                    final Callable<Policy> policyLoader,
+                                    final long cacheKey) throws CMException {
+
+        final RelatedCoalescer coalescer = getCoalescer();
+        if (coalescer == null) {
+            return calculateResults(cmServer, searchClient, settings, contentId, policyLoader, cacheKey);
+        }
+        final RelatedIdsCache cache = getIdsCache();
+        try {
+            final RelatedCoalescer.Result result = coalescer.load(
+                    cacheKey,
+                    cache.getCacheTime(settings),
+                    cache.getRefreshTime(settings),
+                    settings.getSearchTimeout(),
+                    new Callable<RelatedEntry>() {
+                        @Override
+                        public RelatedEntry call() throws Exception {
+                            return calculateResults(cmServer, searchClient, settings, contentId, policyLoader, cacheKey);
+                        }
+                    });
+            if (result.isShared()) {
+
+                // the list has been calculated by another node, its entities are read from
+                // the content so the contents tagged like it will evict it here too.
+
+                REVERSE_INDEX.register(
+                        cacheKey,
+                        result.getEntry(),
+                        contentId,
+                        calculator.getEntityKeys(settings, loadPolicy(policyLoader)));
+            }
+            return result.getEntry();
+        } catch (CMException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CMException(e);
+        }
+    }
+
+    private RelatedEntry calculateResults(final PolicyCMServer cmServer,
+                                          final SearchClient searchClient,
+                                          final SiteSettingsPolicy settings,
+                                          final ContentId contentId,
+                                          final Callable<Policy> policyLoader,
+                                          final long cacheKey) throws CMException {
+
+        final PrecomputedStore store = getPrecomputedStore();
+        if (store != null) {
+            final PrecomputedStore.Entry stored = store.get(CompiledSettings.of(settings), contentId);
+            if (stored != null) {
+
+                // the list may be hours old, the contents removed since then are dropped.
+
+                final LiveContentResolver.Result live = LIVE_CONTENT_RESOLVER.resolve(
+                        cmServer,
+                        stored.getIds().iterator(),
+                        stored.getIds().size());
+                final RelatedEntry entry = new RelatedEntry(live.getIds());
+                REVERSE_INDEX.register(cacheKey, entry, contentId, stored.getEntities());
+                return entry;
+            }
+        }
+        final RelatedCalculator.Result result = calculator.calculate(
+                searchClient,
+                settings,
+                loadPolicy(policyLoader),
+                getSharedResults(settings));
+        if (result.isShortCircuit()) {
+            final NegativeRelatedCache negativeCache = getNegativeCache();
+            if (negativeCache != null) {
+                negativeCache.add(CompiledSettings.of(settings), contentId);
+            }
+        }
+        final RelatedEntry entry = new RelatedEntry(result.getIds(), result.getCreated());
+        REVERSE_INDEX.register(cacheKey, entry, contentId, result.getEntities());
+        return entry;
+    }
+
+    /**
+     * The search results shared by the contents with the same related query are kept
+     * in the ids cache too, so they are sized, expired and invalidated as the lists
+     * of the single contents.
+     */
+    private RelatedCalculator.SharedResults getSharedResults(final SiteSettingsPolicy settings) {
+        return new RelatedCalculator.SharedResults() {
+            @Override
+            public RelatedEntry get(final long key,
+                                    final ContentId source,
+                                    final Collection<String> entities,
+                                    final Callable<List<ContentId>> loader) throws CMException {
+                try {
+                    return getIdsCache().get(settings, key, new Callable<RelatedEntry>() {
+                        @Override
+                        public RelatedEntry call() throws Exception {
+                            final RelatedEntry entry = new RelatedEntry(loader.call());
+                            REVERSE_INDEX.register(key, entry, source, entities);
+                            return entry;
+                        }
+                    });
+                } catch (ExecutionException e) {
+                    throw toCMException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Keep the unavailable search visible to the callers, so they can tell it from a real error.
+     */
+    private static CMException toCMException(final ExecutionException e) {
+        for (final Throwable cause : Throwables.getCausalChain(e)) {
+            if (cause instanceof RelatedSearchUnavailableException) {
+                return (RelatedSearchUnavailableException) cause;
+            }
+        }
+        return new CMException(e);
+    }
+
+    private static Policy loadPolicy(final Callable<Policy> policyLoader) throws CMException {
+        try {
+            return policyLoader.call();
+        } catch (CMException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CMException(e);
+        }
+    }
+
+    private static RelatedCoalescer createCoalescer() {
+        final SharedRelatedStore store = SharedRelatedStores.getDefault();
+        if (store != null) {
+            LOGGER.log(Level.INFO, "sharing related lists with " + store.getClass().getName());
+            return new RelatedCoalescer(store);
+        }
+        return null;
+    }
+
+    private static ConcurrentMap<String, RelatedCacheSnapshot.Site> readSnapshot() {
+        final ConcurrentMap<String, RelatedCacheSnapshot.Site> sites = new ConcurrentHashMap<>();
+        if (SNAPSHOT != null) {
+            sites.putAll(SNAPSHOT.read());
+        }
+        return sites;
+    }
+
+    private static void scheduleSnapshot() {
+        if (SNAPSHOT == null) {
+            return;
+        }
+        final Runnable writer = new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot();
+            }
+        };
+        final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "autorelated-snapshot");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(writer, SNAPSHOT_INTERVAL_SEC, SNAPSHOT_INTERVAL_SEC, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(writer, "autorelated-snapshot-shutdown"));
+        LOGGER.log(Level.INFO, "writing related lists snapshot to " + SNAPSHOT.getFile() + " every " + SNAPSHOT_INTERVAL_SEC + "s");
+    }
+
+    private static synchronized void writeSnapshot() {
+
+        // nothing has been requested yet, do not overwrite the snapshot we started with.
+
+        if (SITE_FINGERPRINTS.isEmpty()) {
+            return;
+        }
+        try {
+            final int count = SNAPSHOT.write(IDS_CACHE, REVERSE_INDEX, SITE_FINGERPRINTS, WARM_SITES);
+            LOGGER.log(Level.FINE, "written " + count + " related lists to " + SNAPSHOT.getFile());
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "cannot write " + SNAPSHOT.getFile() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static ExecutorService createBulkExecutor() {
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                BULK_THREADS,
+                BULK_THREADS,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(BULK_QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "autorelated-bulk-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+
+                // when the pool is saturated the caller will calculate the list itself.
+
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+}
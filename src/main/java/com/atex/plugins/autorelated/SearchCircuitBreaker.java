@@ -0,0 +1,152 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A circuit breaker for the related search of every site.
+ *
+ * After a number of consecutive failures (errors or timeouts) the breaker
+ * opens and no search is done for the cooldown time, then a single search
+ * is let through (half open): if it succeeds the breaker closes, otherwise
+ * it opens again for another cooldown.
+ */
+public class SearchCircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(SearchCircuitBreaker.class.getName());
+
+    private static final int FAILURE_THRESHOLD = Integer.getInteger("autorelated.breaker.failures", 5);
+    private static final long COOLDOWN_MS = Long.getLong("autorelated.breaker.cooldownMs", 30000);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final ConcurrentMap<String, Site> sites = new ConcurrentHashMap<>();
+    private final int failureThreshold;
+    private final long cooldown;
+
+    public SearchCircuitBreaker() {
+        this(FAILURE_THRESHOLD, COOLDOWN_MS);
+    }
+
+    public SearchCircuitBreaker(final int failureThreshold, final long cooldown) {
+        this.failureThreshold = failureThreshold;
+        this.cooldown = cooldown;
+    }
+
+    /**
+     * Check if a search can be done, when it returns true the outcome of the search
+     * must be recorded with {@link #recordSuccess(String)} or {@link #recordFailure(String)}.
+     *
+     * @param siteKey the site.
+     * @return true if the search can be done.
+     */
+    public boolean allowRequest(final String siteKey) {
+        final Site site = sites.get(siteKey);
+        return site == null || site.allowRequest(System.currentTimeMillis());
+    }
+
+    public void recordSuccess(final String siteKey) {
+        final Site site = sites.get(siteKey);
+        if (site != null) {
+            site.recordSuccess(siteKey);
+        }
+    }
+
+    public void recordFailure(final String siteKey) {
+        getSite(siteKey).recordFailure(siteKey, System.currentTimeMillis());
+    }
+
+    public State getState(final String siteKey) {
+        final Site site = sites.get(siteKey);
+        return (site != null) ? site.getState() : State.CLOSED;
+    }
+
+    /**
+     * The state of the breaker of every site which had a failure.
+     *
+     * @return a map with the site key as key.
+     */
+    public Map<String, String> getStates() {
+        final Map<String, String> states = Maps.newTreeMap();
+        for (final Map.Entry<String, Site> entry : sites.entrySet()) {
+            states.put(entry.getKey(), entry.getValue().getState().name());
+        }
+        return states;
+    }
+
+    private Site getSite(final String siteKey) {
+        Site site = sites.get(siteKey);
+        if (site == null) {
+            final Site newSite = new Site();
+            site = sites.putIfAbsent(siteKey, newSite);
+            if (site == null) {
+                site = newSite;
+            }
+        }
+        return site;
+    }
+
+    private class Site {
+
+        private State state = State.CLOSED;
+        private int failures;
+        private long openedAt;
+        private long probeStartedAt;
+
+        synchronized boolean allowRequest(final long now) {
+            switch (state) {
+                case OPEN:
+                    if (now - openedAt < cooldown) {
+                        return false;
+                    }
+                    state = State.HALF_OPEN;
+                    probeStartedAt = now;
+                    return true;
+                case HALF_OPEN:
+
+                    // a probe whose outcome has never been recorded (i.e. the thread
+                    // has been interrupted) must not keep the breaker half open.
+
+                    if (now - probeStartedAt < cooldown) {
+                        return false;
+                    }
+                    probeStartedAt = now;
+                    return true;
+                default:
+                    return true;
+            }
+        }
+
+        synchronized void recordSuccess(final String siteKey) {
+            if (state != State.CLOSED) {
+                LOGGER.log(Level.INFO, "related search of site " + siteKey + " is available again");
+            }
+            state = State.CLOSED;
+            failures = 0;
+        }
+
+        synchronized void recordFailure(final String siteKey, final long now) {
+            failures++;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+                LOGGER.log(Level.WARNING, "related search of site " + siteKey + " failed " + failures
+                        + " times, suspending it for " + cooldown + "ms");
+                state = State.OPEN;
+                openedAt = now;
+            }
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+    }
+
+}
@@ -1,25 +1,30 @@
 package com.atex.plugins.autorelated;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.solr.client.solrj.SolrQuery;
 
 import com.atex.plugins.autorelated.decorators.WithoutContentId;
+import com.google.common.base.Optional;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.polopoly.cm.ContentId;
+import com.polopoly.cm.VersionedContentId;
 import com.polopoly.cm.client.CMException;
 import com.polopoly.cm.collections.ContentList;
 import com.polopoly.cm.policy.ContentPolicy;
 import com.polopoly.cm.policy.Policy;
-import com.polopoly.cm.policy.PolicyCMServer;
 import com.polopoly.metadata.Dimension;
+import com.polopoly.metadata.Entity;
 import com.polopoly.metadata.Metadata;
 import com.polopoly.metadata.MetadataAware;
-import com.polopoly.metadata.MetadataDimension;
 import com.polopoly.metadata.util.MetadataUtil;
 import com.polopoly.search.metadata.DimensionOperator;
 import com.polopoly.search.metadata.EntityOperator;
@@ -41,6 +46,14 @@ public class SearchUtil {
     private static final Logger LOGGER = Logger.getLogger(SearchUtil.class.getName());
 
     private static final MetadataQueryBuilder metadataQueryBuilder = new MetadataQueryBuilder();
+
+    // the site of every content version, the settings are always read from the
+    // current version of the site so only the association is cached.
+
+    private static final Cache<VersionedContentId, Optional<ContentId>> SITE_IDS = CacheBuilder.newBuilder()
+            .maximumSize(Integer.getInteger("autorelated.siteSettings.cacheSize", 1000))
+            .expireAfterWrite(Long.getLong("autorelated.siteSettings.cacheTimeSec", 600), TimeUnit.SECONDS)
+            .build();
     private static final String PUBDATE_FIELDNAME = IndexFields.PUBLISHING_DATE.fieldName();
 
     // prefer newest content, see https://stackoverflow.com/questions/22017616/stronger-boosting-by-date-in-solr
@@ -50,7 +63,44 @@ public class SearchUtil {
     private static final String BOOST_FUNC_PARAM = String.format("recip(ms(NOW/HOUR, %s),6.43e-11,1,1)", PUBDATE_FIELDNAME);
     private static final String BOOST_QUERY_PARAM = String.format("%s:[NOW/DAY-1YEAR TO NOW/DAY]", PUBDATE_FIELDNAME);
 
+    /**
+     * Return the settings of the first associated site of a content which has them,
+     * the site is remembered for every version of the content.
+     *
+     * @param policy the content.
+     * @return the settings or null.
+     * @throws CMException if the settings cannot be read.
+     */
     public SiteSettingsPolicy getSiteSettings(final Policy policy) throws CMException {
+        final VersionedContentId policyId = policy.getContentId();
+        if (policyId == null) {
+            return fetchSiteSettings(policy);
+        }
+        final Optional<ContentId> siteId = SITE_IDS.getIfPresent(policyId);
+        if (siteId != null) {
+            if (!siteId.isPresent()) {
+                return null;
+            }
+            final SiteSettingsPolicy settings = getChildSettings(policy.getCMServer().getPolicy(siteId.get()));
+            if (settings != null) {
+                return settings;
+            }
+        }
+        final SiteSettingsPolicy settings = fetchSiteSettings(policy);
+        SITE_IDS.put(policyId, (settings != null)
+                ? Optional.of(settings.getContentId().getContentId())
+                : Optional.<ContentId>absent());
+        return settings;
+    }
+
+    private SiteSettingsPolicy getChildSettings(final Policy site) throws CMException {
+        if (site instanceof ContentPolicy) {
+            return (SiteSettingsPolicy) ((ContentPolicy) site).getChildPolicy("autorelated");
+        }
+        return null;
+    }
+
+    private SiteSettingsPolicy fetchSiteSettings(final Policy policy) throws CMException {
         final PolicyFetcher associatedSitesFetcher = new PolicyFetcherFactory().createFetcherForAssociatedSites(policy.getCMServer());
         final Set<Policy> policies = associatedSitesFetcher.fetch(policy);
         if (policies != null) {
@@ -79,6 +129,46 @@ public class SearchUtil {
         return false;
     }
 
+    /**
+     * Return a key for every entity of the given metadata.
+     *
+     * @param metadata the metadata.
+     * @return a not null list of keys in the form <code>dimensionId:entityId</code>.
+     */
+    public List<String> getEntityKeys(final Metadata metadata) {
+        final List<String> entities = Lists.newArrayList();
+        for (final Dimension dimension : metadata.getDimensions()) {
+            for (final Entity entity : dimension.getEntities()) {
+                entities.add(getEntityKey(dimension.getId(), entity.getId()));
+            }
+        }
+        return entities;
+    }
+
+    public static String getEntityKey(final String dimensionId, final String entityId) {
+        return dimensionId + ":" + entityId;
+    }
+
+    /**
+     * Return a string which is the same for all the contents that would give the
+     * same related query, regardless of the order of their entities.
+     *
+     * @param inputTemplate the input template of the related contents.
+     * @param metadata the (filtered) metadata used to find the related contents.
+     * @return a not null string.
+     */
+    public String getMetadataSignature(final String inputTemplate, final Metadata metadata) {
+        final List<String> entities = getEntityKeys(metadata);
+        Collections.sort(entities);
+        final StringBuilder sb = new StringBuilder("signature:");
+        sb.append(inputTemplate);
+        for (final String entity : entities) {
+            sb.append(';');
+            sb.append(entity);
+        }
+        return sb.toString();
+    }
+
     public Metadata getMetadata(final Policy policy) {
         try {
             final MetadataAware metadataAware = MetadataUtil.getMetadataAware(policy);
@@ -92,8 +182,22 @@ public class SearchUtil {
     }
 
     public void excludeRelated(final ContentPolicy policy, final WithDecorators decorators) {
+        final List<ContentId> ids = getRelatedIds(policy);
+        if (ids.size() > 0) {
+            decorators.add(new WithoutContentId(ids.toArray(new ContentId[ids.size()])));
+        }
+    }
+
+    /**
+     * Return the contents which are already related to the given content, they
+     * should not be part of the automatic related list.
+     *
+     * @param policy the content.
+     * @return a not null list.
+     */
+    public List<ContentId> getRelatedIds(final ContentPolicy policy) {
+        final List<ContentId> ids = Lists.newArrayList();
         try {
-            final List<ContentId> ids = Lists.newArrayList();
             final ContentList related = policy.getContentList("related");
             if (related != null && related.size() > 0) {
                 for (int idx = 0; idx < related.size(); idx++) {
@@ -106,40 +210,15 @@ public class SearchUtil {
                     ids.add(autorelated.getEntry(idx).getReferredContentId());
                 }
             }
-            if (ids.size() > 0) {
-                decorators.add(new WithoutContentId(ids.toArray(new ContentId[ids.size()])));
-            }
         } catch (CMException e) {
             LOGGER.log(Level.SEVERE, "cannot get related for " + policy.getContentId().getContentIdString() + ": " + e.getMessage(), e);
         }
+        return ids;
     }
 
     public Metadata filterMetadata(final SiteSettingsPolicy settings, final Metadata metadata) {
         try {
-            final List<Dimension> configuredDimensions = Lists.newArrayList();
-            final PolicyCMServer cmServer = settings.getCMServer();
-            final ContentList contentList = settings.getCategorizationContentList();
-            for (int idx = 0; idx < contentList.size(); idx++) {
-                final ContentId contentId = contentList.getEntry(idx).getReferredContentId();
-                final Policy policy = cmServer.getPolicy(contentId);
-                if (policy instanceof MetadataDimension) {
-                    final Dimension dimension = ((MetadataDimension) policy).getDimension();
-                    if (dimension == null) {
-                        continue;
-                    }
-                    configuredDimensions.add(dimension);
-                }
-            }
-            if (configuredDimensions.size() > 0) {
-                final Metadata newMetadata = new Metadata();
-                for (final Dimension d : configuredDimensions) {
-                    final Dimension dimension = metadata.getDimensionById(d.getId());
-                    if (dimension != null) {
-                        newMetadata.addDimension(dimension);
-                    }
-                }
-                return newMetadata;
-            }
+            return CompiledSettings.of(settings).getDimensionFilter().filter(metadata);
         } catch (CMException e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
         }
@@ -150,6 +229,26 @@ public class SearchUtil {
                                   final String inputTemplate,
                                   final Metadata metadata,
                                   final String minimumMatch) {
+        final SolrQuery q = getSolrQuery(inputTemplate, metadata, minimumMatch);
+        if (q != null) {
+            return new WithoutContentId(contentId).decorate(q);
+        }
+        return null;
+    }
+
+    /**
+     * Return the related query without excluding the content itself, the caller must
+     * exclude it from the results (i.e. to avoid a filter query which is different
+     * for every content).
+     *
+     * @param inputTemplate the input template of the related contents.
+     * @param metadata the metadata used to find the related contents.
+     * @param minimumMatch the edismax <code>mm</code> param.
+     * @return the query or null if the metadata does not produce a query.
+     */
+    public SolrQuery getSolrQuery(final String inputTemplate,
+                                  final Metadata metadata,
+                                  final String minimumMatch) {
 
         // see https://cwiki.apache.org/confluence/display/solr/The+Extended+DisMax+Query+Parser
         // and https://cwiki.apache.org/confluence/display/solr/The+DisMax+Query+Parser for the
@@ -157,10 +256,7 @@ public class SearchUtil {
 
         final String query = metadataQueryBuilder.buildMetadataQuery(metadata, DimensionOperator.NONE, EntityOperator.OR);
         if (!StringUtil.isEmpty(query)) {
-            final SolrQuery q = new WithDecorators(
-                    new WithInputTemplate(inputTemplate),
-                    new WithoutContentId(contentId)
-            ).decorate(new SolrQuery(query))
+            final SolrQuery q = new WithInputTemplate(inputTemplate).decorate(new SolrQuery(query))
              .clearSorts()
              .setParam("defType", "edismax")
 
@@ -0,0 +1,56 @@
+package com.atex.plugins.autorelated;
+
+/**
+ * A store of related lists shared by all the front nodes.
+ *
+ * It is used by the {@link RelatedCoalescer} so only one node calculates a
+ * list while the other nodes wait for it, the lease is a short lived lock
+ * on a key which expires by itself if the node holding it dies.
+ *
+ * Implementations must be thread safe and must never throw: a failing store
+ * only means that the list will be calculated locally.
+ * @see SharedRelatedStores#getDefault()
+ */
+public interface SharedRelatedStore {
+
+    /**
+     * Get a list.
+     *
+     * @param key the cache key.
+     * @return the list or null if it is missing or expired.
+     */
+    RelatedEntry get(long key);
+
+    /**
+     * Store a list.
+     *
+     * @param key the cache key.
+     * @param entry the list.
+     * @param ttl how long the list is valid since it has been created (see {@link RelatedEntry#getCreated()}), in milliseconds.
+     */
+    void put(long key, RelatedEntry entry, long ttl);
+
+    /**
+     * Remove the given lists.
+     *
+     * @param keys the cache keys.
+     */
+    void remove(Iterable<Long> keys);
+
+    /**
+     * Try to get the lease of a key.
+     *
+     * @param key the cache key.
+     * @param leaseTime how long the lease is valid, in milliseconds.
+     * @return true if the lease has been acquired.
+     */
+    boolean tryLease(long key, long leaseTime);
+
+    /**
+     * Release a lease acquired with {@link #tryLease(long, long)}.
+     *
+     * @param key the cache key.
+     */
+    void releaseLease(long key);
+
+}
@@ -0,0 +1,66 @@
+package com.atex.plugins.autorelated;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the {@link SharedRelatedStore} configured with the
+ * <code>autorelated.shared.store</code> system property, it can be:
+ * <ul>
+ *     <li><code>memory</code> for an {@link InMemorySharedRelatedStore};</li>
+ *     <li><code>file:&lt;dir&gt;</code> for a {@link FileSharedRelatedStore};</li>
+ *     <li>the name of a class implementing {@link SharedRelatedStore} with a public no args constructor.</li>
+ * </ul>
+ */
+public class SharedRelatedStores {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedRelatedStores.class.getName());
+
+    private static final String STORE_PROPERTY = "autorelated.shared.store";
+    private static final String MEMORY = "memory";
+    private static final String FILE_PREFIX = "file:";
+
+    private static volatile SharedRelatedStore defaultStore;
+    private static volatile boolean initialized;
+
+    private SharedRelatedStores() {
+    }
+
+    /**
+     * The configured store.
+     *
+     * @return the store or null if it has not been configured (or it cannot be created).
+     */
+    public static SharedRelatedStore getDefault() {
+        if (!initialized) {
+            synchronized (SharedRelatedStores.class) {
+                if (!initialized) {
+                    defaultStore = create(System.getProperty(STORE_PROPERTY));
+                    initialized = true;
+                }
+            }
+        }
+        return defaultStore;
+    }
+
+    static SharedRelatedStore create(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        final String config = value.trim();
+        if (MEMORY.equals(config)) {
+            return new InMemorySharedRelatedStore();
+        }
+        if (config.startsWith(FILE_PREFIX)) {
+            return new FileSharedRelatedStore(new File(config.substring(FILE_PREFIX.length())));
+        }
+        try {
+            return (SharedRelatedStore) Class.forName(config).newInstance();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "cannot create shared store " + config + ": " + e.getMessage(), e);
+        }
+        return null;
+    }
+
+}
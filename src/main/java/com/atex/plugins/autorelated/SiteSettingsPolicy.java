@@ -36,7 +36,36 @@ public class SiteSettingsPolicy extends BaselinePolicy {
 
     public long getCacheTime() {
         final int value = Integer.parseInt(getChildValue("cacheTime", "0"));
-        return value * 1000;
+        return value * 1000L;
+    }
+
+    public long getRefreshTime() {
+        final int value = Integer.parseInt(getChildValue("refreshTime", "0"));
+        return value * 1000L;
+    }
+
+    public int getCacheSize() {
+        return Integer.parseInt(getChildValue("cacheSize", "1000"));
+    }
+
+    /**
+     * The maximum number of entities of a dimension used in the related query,
+     * the rarest ones are kept (see {@link EntityFrequencies}).
+     *
+     * @return the number of entities, 0 or less means no limit.
+     */
+    public int getMaxEntitiesPerDimension() {
+        return Integer.parseInt(getChildValue("maxEntitiesPerDimension", "0"));
+    }
+
+    /**
+     * How long a related search may take, after that no related contents are shown
+     * (see {@link SearchCircuitBreaker}).
+     *
+     * @return the time in milliseconds, 0 or less means no limit.
+     */
+    public long getSearchTimeout() {
+        return Long.parseLong(getChildValue("searchTimeout", "0"));
     }
 
     public String getMinimumMatch() {
@@ -65,12 +94,16 @@ public class SiteSettingsPolicy extends BaselinePolicy {
         return decorators;
     }
 
+    boolean isCommittedVersion() throws CMException {
+        return getContent().getVersionInfo().isCommitted();
+    }
+
     private boolean getChildValueAsBoolean(final String name, final boolean defaultValue) {
         return Boolean.parseBoolean(getChildValue(name, Boolean.toString(defaultValue)));
     }
 
     private Policy getDecorator(ContentId cid) throws CMException {
-        if (getContent().getVersionInfo().isCommitted()) {
+        if (isCommittedVersion()) {
             return getCMServer().getPolicy(cid);
         } else {
             VersionedContentId vid = new VersionedContentId(cid, VersionedContentId.LATEST_VERSION);
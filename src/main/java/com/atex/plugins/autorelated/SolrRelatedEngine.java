@@ -0,0 +1,251 @@
+package com.atex.plugins.autorelated;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.solr.client.solrj.SolrQuery;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.policy.PolicyCMServer;
+import com.polopoly.search.solr.SearchClient;
+import com.polopoly.search.solr.SearchResult;
+import com.polopoly.search.solr.SearchResultPage;
+
+/**
+ * Find the related contents with an edismax query on the solr index.
+ *
+ * The excluded ids (the content itself and its manually related contents)
+ * are not sent to solr, they are removed from the hits while they are
+ * read: filter queries which are different for every content would only
+ * pollute the solr filter cache.
+ *
+ * The hits are read one page at a time, the size of the first page is
+ * given by {@link AdaptiveFetchSize} and the following pages are only
+ * fetched when the hits of the first one have been dropped.
+ *
+ * The search (with all its pages) must complete within the site latency
+ * budget and it is guarded by a {@link SearchCircuitBreaker}, so a slow
+ * solr cannot hold the render threads.
+ */
+public class SolrRelatedEngine implements RelatedEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(SolrRelatedEngine.class.getName());
+
+    private static final int SEARCH_THREADS = Integer.getInteger("autorelated.search.threads", 16);
+    private static final int SEARCH_QUEUE_SIZE = Integer.getInteger("autorelated.search.queueSize", 50);
+
+    private static final AdaptiveFetchSize FETCH_SIZE = new AdaptiveFetchSize();
+    private static final SearchCircuitBreaker CIRCUIT_BREAKER = new SearchCircuitBreaker();
+    private static final ExecutorService SEARCH_EXECUTOR = createSearchExecutor();
+
+    private final SearchUtil searchUtil = new SearchUtil();
+    private final LiveContentResolver liveContentResolver = new LiveContentResolver();
+    private final SearchClient searchClient;
+
+    public SolrRelatedEngine(final SearchClient searchClient) {
+        this.searchClient = searchClient;
+    }
+
+    @Override
+    public List<ContentId> findRelated(final RelatedRequest request) throws CMException {
+        final SolrQuery query = searchUtil.getSolrQuery(
+                request.getInputTemplate(),
+                request.getMetadata(),
+                request.getMinimumMatch());
+        if (query != null) {
+            final SolrQuery decoratedQuery = request.getDecorators().decorate(query);
+            return searchWithinBudget(request.getSiteKey(), request.getSearchTimeout(), new Callable<List<ContentId>>() {
+                @Override
+                public List<ContentId> call() {
+                    return performSearch(
+                            request.getCMServer(),
+                            request.getSiteKey(),
+                            decoratedQuery,
+                            request.getMaxResults(),
+                            request.getExcludedIds());
+                }
+            });
+        }
+        return Lists.newArrayList();
+    }
+
+    /**
+     * Run a search within the latency budget, the outcome is recorded by the circuit breaker.
+     *
+     * @param siteKey the site.
+     * @param timeout the latency budget in milliseconds, 0 or less means no limit and no circuit breaker.
+     * @param search the search.
+     * @return the results of the search.
+     * @throws RelatedSearchUnavailableException if the search cannot be done or it does not complete in time.
+     * @throws CMException if the thread has been interrupted.
+     */
+    protected List<ContentId> searchWithinBudget(final String siteKey,
+                                                 final long timeout,
+                                                 final Callable<List<ContentId>> search) throws CMException {
+        if (timeout <= 0) {
+
+            // without a budget the search runs as it always did, the breaker is not involved.
+
+            try {
+                return search.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CMException(e);
+            }
+        }
+        final SearchCircuitBreaker breaker = getCircuitBreaker();
+        final AutoRelatedMetrics metrics = AutoRelatedMetrics.getInstance();
+        if (!breaker.allowRequest(siteKey)) {
+            metrics.searchRejected();
+            throw new RelatedSearchUnavailableException("related search of site " + siteKey + " is suspended");
+        }
+        final Future<List<ContentId>> future;
+        try {
+            future = SEARCH_EXECUTOR.submit(search);
+        } catch (RejectedExecutionException e) {
+
+            // too many searches in flight is a local condition, solr may be fine so the breaker is not told.
+
+            metrics.searchRejected();
+            throw new RelatedSearchUnavailableException("related search of site " + siteKey + " rejected, too many concurrent searches", e);
+        }
+        try {
+            final List<ContentId> ids;
+            try {
+                ids = future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                metrics.searchTimeout();
+                throw e;
+            }
+            breaker.recordSuccess(siteKey);
+            return ids;
+        } catch (InterruptedException e) {
+
+            // it is not a failure of the search, the breaker will let another search through.
+
+            Thread.currentThread().interrupt();
+            throw new CMException(e);
+        } catch (TimeoutException e) {
+            breaker.recordFailure(siteKey);
+            throw new RelatedSearchUnavailableException("related search of site " + siteKey + " did not complete in " + timeout + "ms", e);
+        } catch (Exception e) {
+            breaker.recordFailure(siteKey);
+            final Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+            throw new RelatedSearchUnavailableException("related search of site " + siteKey + " failed: " + cause, cause);
+        }
+    }
+
+    protected List<ContentId> performSearch(final PolicyCMServer cmServer,
+                                            final String siteKey,
+                                            final SolrQuery query,
+                                            final int maxResults,
+                                            final Set<ContentId> excludedIds) {
+        final AdaptiveFetchSize fetchSize = getFetchSize();
+        final int pageSize = fetchSize.getPageSize(siteKey, maxResults, excludedIds.size());
+        final int maxRows = fetchSize.getMaxRows(maxResults, excludedIds.size());
+        final long start = System.currentTimeMillis();
+        final SearchResult searchResult = searchClient.search(query, pageSize);
+        final long searchTime = System.currentTimeMillis() - start;
+        final AtomicInteger fetched = new AtomicInteger();
+        final AtomicInteger read = new AtomicInteger();
+        final Iterator<ContentId> allHits = Iterators.limit(Iterators.concat(Iterators.transform(
+                searchResult.iterator(),
+                new Function<SearchResultPage, Iterator<ContentId>>() {
+                    @Override
+                    public Iterator<ContentId> apply(final SearchResultPage page) {
+                        final List<ContentId> pageHits = page.getHits();
+                        fetched.addAndGet(pageHits.size());
+                        return pageHits.iterator();
+                    }
+                })), maxRows);
+        final Iterator<ContentId> hits = Iterators.filter(allHits, new Predicate<ContentId>() {
+            @Override
+            public boolean apply(final ContentId id) {
+                if (excludedIds.contains(id.getContentId())) {
+                    return false;
+                }
+                read.incrementAndGet();
+                return true;
+            }
+        });
+        final LiveContentResolver.Result result = liveContentResolver.resolve(cmServer, hits, maxResults);
+        fetchSize.record(siteKey, read.get(), result.getIds().size());
+        AutoRelatedMetrics.getInstance().search(
+                query,
+                searchTime,
+                System.currentTimeMillis() - start,
+                fetched.get(),
+                result.getIds().size(),
+                result.getExistsCalls());
+        LOGGER.log(Level.FINE, "related search made " + result.getExistsCalls() + " contentExists calls to find "
+                + result.getIds().size() + " contents (page size " + pageSize + ", " + fetched.get() + " rows fetched)");
+        return result.getIds();
+    }
+
+    protected AdaptiveFetchSize getFetchSize() {
+        return FETCH_SIZE;
+    }
+
+    protected SearchCircuitBreaker getCircuitBreaker() {
+        return CIRCUIT_BREAKER;
+    }
+
+    /**
+     * The circuit breaker used by default, it is shared by all the engines.
+     *
+     * @return a not null object.
+     */
+    public static SearchCircuitBreaker getDefaultCircuitBreaker() {
+        return CIRCUIT_BREAKER;
+    }
+
+    /**
+     * The fetch size used by default, it is shared by all the engines.
+     *
+     * @return a not null object.
+     */
+    public static AdaptiveFetchSize getDefaultFetchSize() {
+        return FETCH_SIZE;
+    }
+
+    private static ExecutorService createSearchExecutor() {
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                SEARCH_THREADS,
+                SEARCH_THREADS,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(SEARCH_QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "autorelated-search-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+}
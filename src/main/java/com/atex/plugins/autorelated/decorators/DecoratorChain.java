@@ -0,0 +1,93 @@
+package com.atex.plugins.autorelated.decorators;
+
+import java.util.Iterator;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.params.CommonParams;
+
+import com.polopoly.search.solr.QueryDecorator;
+
+/**
+ * An immutable chain of query decorators.
+ *
+ * When the decorators only add filter queries (this is checked once, by
+ * applying them to a probe query) the filter queries are kept and added to
+ * every decorated query, so the decorators themselves are never called
+ * again. Otherwise every query is decorated by the decorators.
+ */
+public class DecoratorChain implements QueryDecorator {
+
+    private static final String PROBE_QUERY = "*:*";
+    private static final String[] NO_FILTER_QUERIES = new String[0];
+
+    private final QueryDecorator decorators;
+    private final String[] filterQueries;
+
+    private DecoratorChain(final QueryDecorator decorators, final String[] filterQueries) {
+        this.decorators = decorators;
+        this.filterQueries = filterQueries;
+    }
+
+    /**
+     * Create a chain, the given decorators must not be modified afterwards.
+     *
+     * @param decorators the decorators.
+     * @return a not null chain.
+     */
+    public static DecoratorChain of(final QueryDecorator decorators) {
+        final SolrQuery probe = decorators.decorate(new SolrQuery(PROBE_QUERY));
+        if (isFilterOnly(probe)) {
+            final String[] fq = probe.getFilterQueries();
+            return new DecoratorChain(decorators, (fq != null) ? fq : NO_FILTER_QUERIES);
+        }
+        return new DecoratorChain(decorators, null);
+    }
+
+    /**
+     * True if the decorators are replaced by a fixed list of filter queries.
+     *
+     * @return a boolean.
+     */
+    public boolean isPrecomputed() {
+        return filterQueries != null;
+    }
+
+    /**
+     * True if the decorators do not change the query at all.
+     *
+     * @return a boolean.
+     */
+    public boolean isEmpty() {
+        return filterQueries != null && filterQueries.length == 0;
+    }
+
+    @Override
+    public SolrQuery decorate(final SolrQuery query) {
+        if (filterQueries == null) {
+            return decorators.decorate(query);
+        }
+        if (filterQueries.length > 0) {
+
+            // the query may keep the given array, so it gets a copy.
+
+            return query.addFilterQuery(filterQueries.clone());
+        }
+        return query;
+    }
+
+    private static boolean isFilterOnly(final SolrQuery probe) {
+        final Iterator<String> names = probe.getParameterNamesIterator();
+        while (names.hasNext()) {
+            final String name = names.next();
+            if (CommonParams.Q.equals(name)) {
+                if (!PROBE_QUERY.equals(probe.getQuery())) {
+                    return false;
+                }
+            } else if (!CommonParams.FQ.equals(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
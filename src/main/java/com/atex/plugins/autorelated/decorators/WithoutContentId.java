@@ -9,6 +9,10 @@ import com.polopoly.search.solr.schema.IndexFields;
 /**
  * WithoutContentId
  *
+ * All the ids are excluded with a single filter query, i.e.
+ * <code>-(contentId:("1.100" OR "1.200"))</code>, so solr uses one filter
+ * cache entry for the whole list instead of one entry for every id.
+ *
  * @author mnova
  */
 public class WithoutContentId implements QueryDecorator {
@@ -25,10 +29,26 @@ public class WithoutContentId implements QueryDecorator {
 
     @Override
     public SolrQuery decorate(SolrQuery query) {
-        if (contentIds != null) {
-            for (final ContentId id : contentIds) {
-                query = query.addFilterQuery("-(" + IndexFields.CONTENT_ID + ":\"" + id.getContentId().getContentIdString() + "\")");
+        if (contentIds != null && contentIds.length > 0) {
+            final StringBuilder sb = new StringBuilder("-(");
+            sb.append(IndexFields.CONTENT_ID);
+            sb.append(":");
+            if (contentIds.length > 1) {
+                sb.append("(");
+            }
+            for (int idx = 0; idx < contentIds.length; idx++) {
+                if (idx > 0) {
+                    sb.append(" OR ");
+                }
+                sb.append("\"");
+                sb.append(contentIds[idx].getContentId().getContentIdString());
+                sb.append("\"");
+            }
+            if (contentIds.length > 1) {
+                sb.append(")");
             }
+            sb.append(")");
+            query = query.addFilterQuery(sb.toString());
         }
         return query;
     }
@@ -0,0 +1,58 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AdaptiveFetchSizeTest {
+
+    private static final String SITE = "2.100";
+
+    private final AdaptiveFetchSize fetchSize = new AdaptiveFetchSize(100);
+
+    @Test
+    public void asksTwiceTheResultsWithoutHistory() {
+        assertEquals(0, fetchSize.getDropRate(SITE), 0);
+        assertEquals(20, fetchSize.getPageSize(SITE, 10, 2));
+    }
+
+    @Test
+    public void growsThePageWithTheDropRate() {
+        fetchSize.record(SITE, 20, 10);
+        assertEquals(0.5, fetchSize.getDropRate(SITE), 0.0001);
+
+        // 10 results with a 25% margin when half of the hits are dropped, plus the excluded ones.
+
+        assertEquals(27, fetchSize.getPageSize(SITE, 10, 2));
+        assertEquals(20, fetchSize.getPageSize("2.200", 10, 2));
+    }
+
+    @Test
+    public void neverAsksMoreThanTheMaxRows() {
+        final AdaptiveFetchSize small = new AdaptiveFetchSize(5);
+        small.record(SITE, 10, 0);
+        assertEquals(17, small.getMaxRows(10, 2));
+        assertEquals(17, small.getPageSize(SITE, 10, 2));
+    }
+
+    @Test
+    public void keepsAMovingAverage() {
+        fetchSize.record(SITE, 20, 10);
+        fetchSize.record(SITE, 20, 20);
+        assertEquals(0.45, fetchSize.getDropRate(SITE), 0.0001);
+    }
+
+    @Test
+    public void capsTheDropRate() {
+        fetchSize.record(SITE, 10, 0);
+        assertEquals(0.9, fetchSize.getDropRate(SITE), 0.0001);
+    }
+
+    @Test
+    public void ignoresTheSearchesWithoutHits() {
+        fetchSize.record(SITE, 0, 0);
+        assertEquals(0, fetchSize.getDropRate(SITE), 0);
+        assertEquals(0, fetchSize.getDropRates().size());
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.client.CMException;
+import com.polopoly.cm.policy.PolicyCMServer;
+
+public class LiveContentResolverTest {
+
+    private final ContentId a = new ContentId(1, 100);
+    private final ContentId b = new ContentId(1, 200);
+    private final ContentId c = new ContentId(1, 300);
+    private final ContentId d = new ContentId(1, 400);
+
+    private PolicyCMServer cmServer;
+    private LiveContentResolver resolver;
+
+    @Before
+    public void setUp() throws CMException {
+        cmServer = mock(PolicyCMServer.class);
+        when(cmServer.contentExists(a)).thenReturn(true);
+        when(cmServer.contentExists(b)).thenReturn(false);
+        when(cmServer.contentExists(c)).thenReturn(true);
+        when(cmServer.contentExists(d)).thenReturn(true);
+        resolver = new LiveContentResolver(MoreExecutors.newDirectExecutorService(), 2);
+    }
+
+    @Test
+    public void keepsTheExistingHitsInRankingOrder() {
+        final LiveContentResolver.Result result = resolver.resolve(cmServer, Arrays.asList(a, b, c, d).iterator(), 10);
+        assertEquals(Arrays.asList(a, c, d), result.getIds());
+        assertEquals(4, result.getExistsCalls());
+    }
+
+    @Test
+    public void stopsOnceMaxResultsExist() {
+        final LiveContentResolver.Result result = resolver.resolve(cmServer, Arrays.asList(a, b, c, d).iterator(), 2);
+        assertEquals(Arrays.asList(a, c), result.getIds());
+        assertEquals(4, result.getExistsCalls());
+    }
+
+    @Test
+    public void checksEveryIdOnce() {
+        final List<ContentId> hits = Arrays.asList(a, a, c, a);
+        final LiveContentResolver.Result result = resolver.resolve(cmServer, hits.iterator(), 10);
+        assertEquals(Arrays.asList(a, c), result.getIds());
+        assertEquals(2, result.getExistsCalls());
+    }
+
+    @Test
+    public void skipsTheContentsWhichCannotBeChecked() throws CMException {
+        when(cmServer.contentExists(a)).thenThrow(new CMException("down"));
+        final LiveContentResolver.Result result = resolver.resolve(cmServer, Arrays.asList(a, c).iterator(), 10);
+        assertEquals(Arrays.asList(c), result.getIds());
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atex.plugins.autorelated.decorators.DecoratorChain;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.VersionedContentId;
+import com.polopoly.cm.policy.PolicyCMServer;
+import com.polopoly.metadata.Dimension;
+import com.polopoly.metadata.Entity;
+import com.polopoly.metadata.Metadata;
+import com.polopoly.search.solr.QueryDecorator;
+import com.polopoly.search.solr.SearchClient;
+import com.polopoly.search.solr.SearchResult;
+import com.polopoly.search.solr.SearchResultPage;
+
+public class LocalRelatedEngineTest {
+
+    private static final String INPUT_TEMPLATE = "example.StandardArticle";
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    // the site decorator replaces every query with this one, so it is what the engine searches.
+
+    private static final SolrQuery SITE_QUERY = new SolrQuery("*:*").setParam("defType", "edismax");
+
+    private final ContentId a = new ContentId(1, 100);
+    private final ContentId b = new ContentId(1, 200);
+    private final ContentId c = new ContentId(1, 300);
+    private final ContentId d = new ContentId(1, 400);
+    private final ContentId e = new ContentId(1, 500);
+
+    private final long now = System.currentTimeMillis();
+
+    private PolicyCMServer cmServer;
+    private LocalRelatedEngine engine;
+    private String siteKey;
+
+    @Before
+    public void setUp() {
+        cmServer = mock(PolicyCMServer.class);
+        final SearchResult searchResult = mock(SearchResult.class);
+        when(searchResult.iterator()).thenReturn(Collections.<SearchResultPage>emptyList().iterator());
+        final SearchClient searchClient = mock(SearchClient.class);
+        when(searchClient.search(SITE_QUERY, 500)).thenReturn(searchResult);
+        final CompiledSettings compiled = createSettings();
+
+        engine = new LocalRelatedEngine();
+        siteKey = compiled.getSiteKey();
+        engine.indexAll(cmServer, searchClient, compiled);
+    }
+
+    @Test
+    public void ranksByTheMatchingEntities() {
+        engine.index(siteKey, a, INPUT_TEMPLATE, createMetadata("x", "y"), now);
+        engine.index(siteKey, b, INPUT_TEMPLATE, createMetadata("x", "y"), now);
+        engine.index(siteKey, c, INPUT_TEMPLATE, createMetadata("x"), now);
+        engine.index(siteKey, d, INPUT_TEMPLATE, createMetadata("z"), now);
+
+        assertEquals(Arrays.asList(b, c), findRelated(createMetadata("x", "y"), "1", 10));
+        assertEquals(Arrays.asList(b), findRelated(createMetadata("x", "y"), "1", 1));
+    }
+
+    @Test
+    public void prefersTheRarerEntities() {
+        engine.index(siteKey, b, INPUT_TEMPLATE, createMetadata("x"), now);
+        engine.index(siteKey, c, INPUT_TEMPLATE, createMetadata("y"), now);
+        engine.index(siteKey, d, INPUT_TEMPLATE, createMetadata("x"), now);
+        engine.index(siteKey, e, INPUT_TEMPLATE, createMetadata("x"), now);
+
+        final List<ContentId> related = findRelated(createMetadata("x", "y"), "1", 10);
+        assertEquals(4, related.size());
+        assertEquals(c, related.get(0));
+    }
+
+    @Test
+    public void appliesTheMinimumMatch() {
+        engine.index(siteKey, b, INPUT_TEMPLATE, createMetadata("x", "y"), now);
+        engine.index(siteKey, c, INPUT_TEMPLATE, createMetadata("x"), now);
+
+        assertEquals(Arrays.asList(b), findRelated(createMetadata("x", "y"), "2", 10));
+        assertEquals(Arrays.asList(b), findRelated(createMetadata("x", "y"), "100%", 10));
+    }
+
+    @Test
+    public void skipsTheExcludedContents() {
+        engine.index(siteKey, a, INPUT_TEMPLATE, createMetadata("x"), now);
+        engine.index(siteKey, b, INPUT_TEMPLATE, createMetadata("x"), now);
+        engine.index(siteKey, c, "example.Image", createMetadata("x"), now);
+        engine.index(siteKey, d, INPUT_TEMPLATE, createMetadata("x"), now);
+
+        final RelatedRequest request = new RelatedRequest(cmServer, siteKey, a, INPUT_TEMPLATE, createMetadata("x"),
+                "1", 10, Sets.newHashSet(d), null, 0);
+        assertEquals(Arrays.asList(b), engine.findRelated(request));
+    }
+
+    @Test
+    public void prefersTheNewerContents() {
+        engine.index(siteKey, b, INPUT_TEMPLATE, createMetadata("x"), now - 365 * DAY);
+        engine.index(siteKey, c, INPUT_TEMPLATE, createMetadata("x"), now - DAY);
+        engine.index(siteKey, d, INPUT_TEMPLATE, createMetadata("x"), now - 30 * DAY);
+
+        assertEquals(Arrays.asList(c, d, b), findRelated(createMetadata("x"), "1", 10));
+    }
+
+    @Test
+    public void theDateDecayCanOutweighAnEntity() {
+
+        // a year old content matching both entities scores less than a new one matching one.
+
+        engine.index(siteKey, b, INPUT_TEMPLATE, createMetadata("x", "y"), now - 365 * DAY);
+        engine.index(siteKey, c, INPUT_TEMPLATE, createMetadata("x"), now);
+        engine.index(siteKey, d, INPUT_TEMPLATE, createMetadata("z"), now);
+
+        assertEquals(Arrays.asList(c, b), findRelated(createMetadata("x", "y"), "1", 10));
+    }
+
+    @Test
+    public void findsNothingForAnUnknownSite() {
+        final RelatedRequest request = new RelatedRequest(cmServer, "2.999", a, INPUT_TEMPLATE, createMetadata("x"),
+                "1", 10, Collections.<ContentId>emptySet(), null, 0);
+        assertEquals(Collections.<ContentId>emptyList(), engine.findRelated(request));
+    }
+
+    @Test
+    public void parsesTheMinimumMatch() {
+        assertEquals(1, LocalRelatedEngine.getRequiredMatches(null, 4));
+        assertEquals(1, LocalRelatedEngine.getRequiredMatches("", 4));
+        assertEquals(2, LocalRelatedEngine.getRequiredMatches("2", 4));
+        assertEquals(4, LocalRelatedEngine.getRequiredMatches("10", 4));
+        assertEquals(3, LocalRelatedEngine.getRequiredMatches("-1", 4));
+        assertEquals(2, LocalRelatedEngine.getRequiredMatches("50%", 4));
+        assertEquals(1, LocalRelatedEngine.getRequiredMatches("30%", 4));
+        assertEquals(3, LocalRelatedEngine.getRequiredMatches("-25%", 4));
+        assertEquals(1, LocalRelatedEngine.getRequiredMatches("-100", 4));
+        assertEquals(1, LocalRelatedEngine.getRequiredMatches("2<50%", 4));
+    }
+
+    private List<ContentId> findRelated(final Metadata metadata, final String minimumMatch, final int maxResults) {
+        final RelatedRequest request = new RelatedRequest(cmServer, siteKey, a, INPUT_TEMPLATE, metadata,
+                minimumMatch, maxResults, Collections.<ContentId>emptySet(), null, 0);
+        return engine.findRelated(request);
+    }
+
+    private static Metadata createMetadata(final String... tags) {
+        final List<Entity> entities = Lists.newArrayList();
+        for (final String tag : tags) {
+            entities.add(new Entity(tag, tag));
+        }
+        final Metadata metadata = new Metadata();
+        metadata.addDimension(new Dimension("tag", "Tag", true, entities));
+        return metadata;
+    }
+
+    private static CompiledSettings createSettings() {
+        return new CompiledSettings(
+                new VersionedContentId(2, 100, 1),
+                "fingerprint",
+                new DimensionFilter(Collections.<String>emptySet()),
+                DecoratorChain.of(new QueryDecorator() {
+                    @Override
+                    public SolrQuery decorate(final SolrQuery query) {
+                        return SITE_QUERY;
+                    }
+                }),
+                Collections.<ContentId>emptySet());
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class LongHashSetTest {
+
+    @Test
+    public void addsAndRemovesValues() {
+        final LongHashSet set = new LongHashSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(1));
+        assertTrue(set.add(-1));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertFalse(set.add(1));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(-1));
+        assertFalse(set.contains(2));
+
+        assertTrue(set.remove(-1));
+        assertFalse(set.remove(-1));
+        assertFalse(set.contains(-1));
+        assertTrue(set.contains(1));
+        assertEquals(2, set.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCannotBeAdded() {
+        new LongHashSet().add(0);
+    }
+
+    @Test
+    public void zeroIsNeverContained() {
+        final LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertFalse(set.remove(0));
+    }
+
+    @Test
+    public void growsBeyondTheExpectedSize() {
+        final LongHashSet set = new LongHashSet(1);
+        for (long value = 1; value <= 1000; value++) {
+            assertTrue(set.add(value));
+        }
+        assertEquals(1000, set.size());
+        for (long value = 1; value <= 1000; value++) {
+            assertTrue(set.contains(value));
+        }
+        final long[] values = set.toArray();
+        Arrays.sort(values);
+        assertEquals(1000, values.length);
+        assertEquals(1, values[0]);
+        assertEquals(1000, values[999]);
+    }
+
+    @Test
+    public void behavesLikeAHashSet() {
+
+        // random adds and removes on a small range, so the probing runs
+        // and the shifts done by remove are exercised.
+
+        final Random random = new Random(42);
+        final LongHashSet set = new LongHashSet(4);
+        final Set<Long> expected = Sets.newHashSet();
+        for (int idx = 0; idx < 100000; idx++) {
+            final long value = 1 + random.nextInt(200);
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(value), set.add(value));
+            } else {
+                assertEquals(expected.remove(value), set.remove(value));
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        for (long value = 1; value <= 200; value++) {
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+        final long[] values = set.toArray();
+        final long[] expectedValues = new long[expected.size()];
+        int idx = 0;
+        for (final long value : expected) {
+            expectedValues[idx++] = value;
+        }
+        Arrays.sort(values);
+        Arrays.sort(expectedValues);
+        assertArrayEquals(expectedValues, values);
+    }
+
+}
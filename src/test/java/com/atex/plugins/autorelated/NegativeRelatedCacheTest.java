@@ -0,0 +1,101 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.junit.Test;
+
+import com.atex.plugins.autorelated.decorators.DecoratorChain;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.VersionedContentId;
+import com.polopoly.search.solr.QueryDecorator;
+
+public class NegativeRelatedCacheTest {
+
+    private final CompiledSettings site = createSettings(100, "fingerprint");
+    private final CompiledSettings otherSite = createSettings(200, "fingerprint");
+
+    private final NegativeRelatedCache cache = new NegativeRelatedCache(2);
+
+    @Test
+    public void remembersTheContentsOfASite() {
+        cache.add(site, new ContentId(1, 100));
+        assertTrue(cache.contains(site, new ContentId(1, 100)));
+        assertTrue(cache.contains(site, new VersionedContentId(1, 100, 3)));
+        assertFalse(cache.contains(site, new ContentId(1, 200)));
+        assertFalse(cache.contains(otherSite, new ContentId(1, 100)));
+    }
+
+    @Test
+    public void keepsTwoGenerations() {
+        cache.add(site, new ContentId(1, 100));
+        cache.add(site, new ContentId(1, 200));
+
+        // the first generation is full, it becomes the old one.
+
+        cache.add(site, new ContentId(1, 300));
+        assertTrue(cache.contains(site, new ContentId(1, 100)));
+        assertTrue(cache.contains(site, new ContentId(1, 300)));
+
+        // and it is dropped when the second one is full too.
+
+        cache.add(site, new ContentId(1, 400));
+        cache.add(site, new ContentId(1, 500));
+        assertFalse(cache.contains(site, new ContentId(1, 100)));
+        assertFalse(cache.contains(site, new ContentId(1, 200)));
+        assertTrue(cache.contains(site, new ContentId(1, 300)));
+        assertTrue(cache.contains(site, new ContentId(1, 500)));
+    }
+
+    @Test
+    public void forgetsTheChangedContents() {
+        cache.add(site, new ContentId(1, 100));
+        cache.add(site, new ContentId(1, 200));
+        cache.add(site, new ContentId(1, 300));
+        cache.add(otherSite, new ContentId(1, 100));
+
+        cache.remove(new ContentId(1, 100));
+        assertFalse(cache.contains(site, new ContentId(1, 100)));
+        assertFalse(cache.contains(otherSite, new ContentId(1, 100)));
+        assertTrue(cache.contains(site, new ContentId(1, 200)));
+    }
+
+    @Test
+    public void forgetsTheSiteWhenTheSettingsChange() {
+        cache.add(site, new ContentId(1, 100));
+
+        final CompiledSettings changed = createSettings(100, "changed");
+        assertFalse(cache.contains(changed, new ContentId(1, 100)));
+        cache.add(changed, new ContentId(1, 200));
+        assertFalse(cache.contains(site, new ContentId(1, 100)));
+        assertFalse(cache.contains(changed, new ContentId(1, 100)));
+        assertTrue(cache.contains(changed, new ContentId(1, 200)));
+    }
+
+    @Test
+    public void clearsEverySite() {
+        cache.add(site, new ContentId(1, 100));
+        cache.add(otherSite, new ContentId(1, 100));
+        cache.clear();
+        assertFalse(cache.contains(site, new ContentId(1, 100)));
+        assertFalse(cache.contains(otherSite, new ContentId(1, 100)));
+    }
+
+    private static CompiledSettings createSettings(final int minor, final String fingerprint) {
+        return new CompiledSettings(
+                new VersionedContentId(2, minor, 1),
+                fingerprint,
+                new DimensionFilter(Collections.<String>emptySet()),
+                DecoratorChain.of(new QueryDecorator() {
+                    @Override
+                    public SolrQuery decorate(final SolrQuery query) {
+                        return query;
+                    }
+                }),
+                Collections.<ContentId>emptySet());
+    }
+
+}
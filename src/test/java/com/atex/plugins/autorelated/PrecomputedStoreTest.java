@@ -0,0 +1,139 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atex.plugins.autorelated.decorators.DecoratorChain;
+import com.google.common.collect.Maps;
+import com.polopoly.cm.ContentId;
+import com.polopoly.cm.VersionedContentId;
+import com.polopoly.search.solr.QueryDecorator;
+
+public class PrecomputedStoreTest {
+
+    private final ContentId a = new ContentId(1, 100);
+    private final ContentId b = new ContentId(1, 200);
+    private final ContentId c = new ContentId(1, 300);
+
+    private File dir;
+    private CompiledSettings compiled;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("precomputed").toFile();
+        compiled = createSettings("fingerprint");
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void readsTheWrittenLists() throws IOException {
+        write(new PrecomputedStore(dir), a, 1000, false);
+
+        final PrecomputedStore store = new PrecomputedStore(dir);
+        final PrecomputedStore.Entry entry = store.get(compiled, a);
+        assertEquals(Arrays.asList(b, c), entry.getIds());
+        assertEquals(Arrays.asList("tag:b", "tag:c"), entry.getEntities());
+        assertEquals(1000, entry.getCreated());
+        assertEquals(5000, store.getCheckpoint(compiled));
+    }
+
+    @Test
+    public void ignoresTheListsOfOtherSettings() throws IOException {
+        write(new PrecomputedStore(dir), a, 1000, false);
+
+        final PrecomputedStore store = new PrecomputedStore(dir);
+        final CompiledSettings other = createSettings("other");
+        assertNull(store.get(other, a));
+        assertEquals(0, store.getCheckpoint(other));
+    }
+
+    @Test
+    public void mergesTheListsWhenRequested() throws IOException {
+        final PrecomputedStore store = new PrecomputedStore(dir);
+        write(store, a, 1000, false);
+        write(store, b, 2000, true);
+        assertEquals(1000, store.get(compiled, a).getCreated());
+        assertEquals(2000, store.get(compiled, b).getCreated());
+
+        write(store, c, 3000, false);
+        assertNull(store.get(compiled, a));
+        assertEquals(3000, store.get(compiled, c).getCreated());
+    }
+
+    @Test
+    public void ignoresTheInvalidatedLists() throws IOException {
+        final PrecomputedStore store = new PrecomputedStore(dir);
+        final long now = System.currentTimeMillis();
+        write(store, a, now - 1000, false);
+        write(store, b, now - 1000, true);
+
+        store.invalidate(a);
+        assertNull(store.get(compiled, a));
+        assertEquals(now - 1000, store.get(compiled, b).getCreated());
+
+        store.invalidateAll();
+        assertNull(store.get(compiled, b));
+    }
+
+    @Test
+    public void aDirtyMarkResetsTheCheckpoint() throws IOException {
+        final PrecomputedStore store = new PrecomputedStore(dir);
+        write(store, a, 1000, false);
+        store.markDirty(6000);
+
+        // the lists are still used, but the next run of the job must be a full one.
+
+        assertEquals(1000, store.get(compiled, a).getCreated());
+        assertEquals(0, store.getCheckpoint(compiled));
+        assertEquals(0, new PrecomputedStore(dir).getCheckpoint(compiled));
+
+        store.write(compiled, Maps.<ContentId, PrecomputedStore.Entry>newHashMap(), 7000, false);
+        assertEquals(7000, store.getCheckpoint(compiled));
+    }
+
+    private void write(final PrecomputedStore store,
+                       final ContentId contentId,
+                       final long created,
+                       final boolean merge) throws IOException {
+        final Map<ContentId, PrecomputedStore.Entry> entries = Maps.newHashMap();
+        entries.put(contentId, new PrecomputedStore.Entry(Arrays.asList(b, c), Arrays.asList("tag:b", "tag:c"), created));
+        store.write(compiled, entries, 5000, merge);
+    }
+
+    private static CompiledSettings createSettings(final String fingerprint) {
+        return new CompiledSettings(
+                new VersionedContentId(2, 100, 1),
+                fingerprint,
+                new DimensionFilter(Collections.<String>emptySet()),
+                DecoratorChain.of(new QueryDecorator() {
+                    @Override
+                    public SolrQuery decorate(final SolrQuery query) {
+                        return query;
+                    }
+                }),
+                Collections.<ContentId>emptySet());
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.polopoly.cm.ContentId;
+
+public class RelatedCoalescerTest {
+
+    private static final long KEY = 42;
+    private static final long TTL = 600000;
+
+    private final InMemorySharedRelatedStore store = new InMemorySharedRelatedStore();
+    private final RelatedCoalescer coalescer = new RelatedCoalescer(store, 5000, 2000, 10);
+    private final RelatedEntry calculated = new RelatedEntry(Arrays.asList(new ContentId(1, 100)));
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final Callable<RelatedEntry> loader = new Callable<RelatedEntry>() {
+        @Override
+        public RelatedEntry call() {
+            calls.incrementAndGet();
+            return calculated;
+        }
+    };
+
+    @Test
+    public void calculatesAndPublishesAMissingList() throws Exception {
+        final RelatedCoalescer.Result result = coalescer.load(KEY, TTL, 0, 0, loader);
+        assertFalse(result.isShared());
+        assertSame(calculated, result.getEntry());
+        assertSame(calculated, store.get(KEY));
+        assertEquals(1, calls.get());
+
+        // the lease has been released.
+
+        assertTrue(store.tryLease(KEY, 5000));
+    }
+
+    @Test
+    public void usesTheSharedList() throws Exception {
+        final RelatedEntry shared = new RelatedEntry(Arrays.asList(new ContentId(1, 200)));
+        store.put(KEY, shared, TTL);
+
+        final RelatedCoalescer.Result result = coalescer.load(KEY, TTL, 0, 0, loader);
+        assertTrue(result.isShared());
+        assertSame(shared, result.getEntry());
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    public void ignoresASharedListOlderThanTheMaxAge() throws Exception {
+        final RelatedEntry shared = new RelatedEntry(Arrays.asList(new ContentId(1, 200)), System.currentTimeMillis() - 60000);
+        store.put(KEY, shared, TTL);
+
+        final RelatedCoalescer.Result result = coalescer.load(KEY, TTL, 30000, 0, loader);
+        assertFalse(result.isShared());
+        assertSame(calculated, result.getEntry());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void waitsForTheListOfTheLeaseHolder() throws Exception {
+        final RelatedEntry shared = new RelatedEntry(Arrays.asList(new ContentId(1, 200)));
+        assertTrue(store.tryLease(KEY, 5000));
+        final Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                store.put(KEY, shared, TTL);
+            }
+        });
+        other.start();
+
+        final RelatedCoalescer.Result result = coalescer.load(KEY, TTL, 0, 0, loader);
+        other.join();
+        assertTrue(result.isShared());
+        assertSame(shared, result.getEntry());
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    public void calculatesWhenTheListDoesNotShowUp() throws Exception {
+        assertTrue(store.tryLease(KEY, 5000));
+
+        final long start = System.currentTimeMillis();
+        final RelatedCoalescer.Result result = coalescer.load(KEY, TTL, 0, 100, loader);
+        assertFalse(result.isShared());
+        assertSame(calculated, result.getEntry());
+        assertEquals(1, calls.get());
+
+        // the wait is bounded by the given max wait, not by the coalescer one.
+
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+}
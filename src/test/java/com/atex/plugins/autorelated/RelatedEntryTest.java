@@ -0,0 +1,72 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.polopoly.cm.ContentId;
+
+public class RelatedEntryTest {
+
+    private static final long MINUTE = 60000;
+
+    private final long now = System.currentTimeMillis();
+
+    @Test
+    public void packsTheMajorAndTheMinor() {
+        final long key = RelatedEntry.toKey(new ContentId(1, 100));
+        assertEquals(1, (int) (key >>> 32));
+        assertEquals(100, (int) key);
+        assertEquals(key, RelatedEntry.toKey(1, 100));
+        assertNotEquals(key, RelatedEntry.toKey(100, 1));
+    }
+
+    @Test
+    public void keepsTheNegativeMinors() {
+        final long key = RelatedEntry.toKey(2, -1);
+        assertEquals(2, (int) (key >>> 32));
+        assertEquals(-1, (int) key);
+        assertNotEquals(RelatedEntry.toKey(1, -1), RelatedEntry.toKey(2, -1));
+    }
+
+    @Test
+    public void theKeysOfTheListMatchTheIds() {
+        final RelatedEntry entry = new RelatedEntry(Arrays.asList(new ContentId(1, 100), new ContentId(7, 200)));
+        assertEquals(2, entry.size());
+        assertEquals(RelatedEntry.toKey(new ContentId(1, 100)), entry.getKey(0));
+        assertEquals(RelatedEntry.toKey(new ContentId(7, 200)), entry.getKey(1));
+        assertEquals(Arrays.asList(new ContentId(1, 100), new ContentId(7, 200)), entry.getIds());
+    }
+
+    @Test
+    public void needsRefreshWhenOlderThanTheRefreshTime() {
+        final RelatedEntry entry = new RelatedEntry(Arrays.asList(new ContentId(1, 100)), now - 10 * MINUTE);
+        assertTrue(entry.isOlderThan(5 * MINUTE));
+        assertTrue(entry.needsRefresh(5 * MINUTE));
+        assertFalse(entry.needsRefresh(20 * MINUTE));
+    }
+
+    @Test
+    public void theRefreshTimeCountsFromTheLastRefresh() {
+        final RelatedEntry entry = new RelatedEntry(Arrays.asList(new ContentId(1, 100)), now - 10 * MINUTE);
+        entry.markRefreshed(now - MINUTE);
+        assertFalse(entry.needsRefresh(5 * MINUTE));
+
+        // the age of the list does not change.
+
+        assertTrue(entry.isOlderThan(5 * MINUTE));
+    }
+
+    @Test
+    public void anOlderRefreshIsIgnored() {
+        final RelatedEntry entry = new RelatedEntry(Arrays.asList(new ContentId(1, 100)), now - MINUTE);
+        entry.markRefreshed(now - 10 * MINUTE);
+        assertFalse(entry.needsRefresh(5 * MINUTE));
+    }
+
+}
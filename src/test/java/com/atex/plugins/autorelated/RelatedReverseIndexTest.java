@@ -0,0 +1,89 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Sets;
+import com.polopoly.cm.ContentId;
+
+public class RelatedReverseIndexTest {
+
+    private final ContentId a = new ContentId(1, 100);
+    private final ContentId b = new ContentId(1, 200);
+    private final ContentId c = new ContentId(1, 300);
+    private final ContentId d = new ContentId(1, 400);
+
+    private final RelatedReverseIndex index = new RelatedReverseIndex(2);
+
+    @Test
+    public void findsTheListsBySourceAndContent() {
+        index.register(1L, new RelatedEntry(Arrays.asList(b, c)), a, Collections.<String>emptyList());
+        index.register(2L, new RelatedEntry(Arrays.asList(a)), d, Collections.<String>emptyList());
+
+        assertEquals(Sets.newHashSet(1L, 2L), index.getAffectedKeys(a, Collections.<String>emptyList()));
+        assertEquals(Sets.newHashSet(1L), index.getAffectedKeys(c, Collections.<String>emptyList()));
+        assertEquals(Sets.newHashSet(2L), index.getAffectedKeys(d, Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void findsTheListsByEntity() {
+        index.register(1L, new RelatedEntry(Arrays.asList(b)), a, Arrays.asList("tag:x"));
+        index.register(2L, new RelatedEntry(Arrays.asList(a)), c, Arrays.asList("tag:x", "tag:y"));
+
+        assertEquals(Sets.newHashSet(1L, 2L), index.getAffectedKeys(d, Arrays.asList("tag:x")));
+        assertEquals(Sets.newHashSet(2L), index.getAffectedKeys(d, Arrays.asList("tag:y")));
+        assertTrue(index.getAffectedKeys(d, Arrays.asList("tag:z")).isEmpty());
+    }
+
+    @Test
+    public void ignoresTheTooGenericEntities() {
+        index.register(1L, new RelatedEntry(Arrays.asList(b)), a, Arrays.asList("tag:x"));
+        index.register(2L, new RelatedEntry(Arrays.asList(b)), c, Arrays.asList("tag:x"));
+        index.register(3L, new RelatedEntry(Arrays.asList(b)), d, Arrays.asList("tag:x"));
+
+        assertTrue(index.getAffectedKeys(new ContentId(1, 500), Arrays.asList("tag:x")).isEmpty());
+    }
+
+    @Test
+    public void replacesTheRegistrationOfAKey() {
+        index.register(1L, new RelatedEntry(Arrays.asList(b)), a, Arrays.asList("tag:x"));
+        index.register(1L, new RelatedEntry(Arrays.asList(c)), a, Arrays.asList("tag:y"));
+
+        assertEquals(1, index.size());
+        assertTrue(index.getAffectedKeys(b, Arrays.asList("tag:x")).isEmpty());
+        assertEquals(Sets.newHashSet(1L), index.getAffectedKeys(c, Collections.<String>emptyList()));
+        assertEquals(RelatedEntry.toKey(a), index.getRegistration(1L).getSource());
+        assertEquals(Arrays.asList("tag:y"), index.getRegistration(1L).getEntities());
+    }
+
+    @Test
+    public void forgetsTheRemovedKeys() {
+        final RelatedEntry entry = new RelatedEntry(Arrays.asList(b));
+        index.register(1L, entry, a, Arrays.asList("tag:x"));
+        index.onRemoval(RemovalNotification.<Long, Object>create(1L, entry, RemovalCause.EXPLICIT));
+
+        assertEquals(0, index.size());
+        assertNull(index.getRegistration(1L));
+        assertTrue(index.getAffectedKeys(b, Arrays.asList("tag:x")).isEmpty());
+    }
+
+    @Test
+    public void keepsTheKeysRegisteredAgain() {
+        final RelatedEntry old = new RelatedEntry(Arrays.asList(b));
+        index.register(1L, old, a, Collections.<String>emptyList());
+        index.register(1L, new RelatedEntry(Arrays.asList(c)), a, Collections.<String>emptyList());
+        index.onRemoval(RemovalNotification.<Long, Object>create(1L, old, RemovalCause.REPLACED));
+
+        assertEquals(1, index.size());
+        assertEquals(Sets.newHashSet(1L), index.getAffectedKeys(c, Collections.<String>emptyList()));
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.atex.plugins.autorelated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SearchCircuitBreakerTest {
+
+    private static final String SITE = "2.100";
+    private static final long COOLDOWN = 50;
+
+    @Test
+    public void opensAfterTheConsecutiveFailures() {
+        final SearchCircuitBreaker breaker = new SearchCircuitBreaker(3, 60000);
+        breaker.recordFailure(SITE);
+        breaker.recordFailure(SITE);
+        assertEquals(SearchCircuitBreaker.State.CLOSED, breaker.getState(SITE));
+        assertTrue(breaker.allowRequest(SITE));
+
+        breaker.recordFailure(SITE);
+        assertEquals(SearchCircuitBreaker.State.OPEN, breaker.getState(SITE));
+        assertFalse(breaker.allowRequest(SITE));
+
+        // the other sites are not affected.
+
+        assertTrue(breaker.allowRequest("2.200"));
+        assertEquals(SearchCircuitBreaker.State.CLOSED, breaker.getState("2.200"));
+    }
+
+    @Test
+    public void aSuccessResetsTheFailures() {
+        final SearchCircuitBreaker breaker = new SearchCircuitBreaker(3, 60000);
+        breaker.recordFailure(SITE);
+        breaker.recordFailure(SITE);
+        breaker.recordSuccess(SITE);
+        breaker.recordFailure(SITE);
+        breaker.recordFailure(SITE);
+        assertEquals(SearchCircuitBreaker.State.CLOSED, breaker.getState(SITE));
+    }
+
+    @Test
+    public void letsASingleProbeThroughAfterTheCooldown() throws InterruptedException {
+        final SearchCircuitBreaker breaker = open();
+        Thread.sleep(2 * COOLDOWN);
+        assertTrue(breaker.allowRequest(SITE));
+        assertEquals(SearchCircuitBreaker.State.HALF_OPEN, breaker.getState(SITE));
+        assertFalse(breaker.allowRequest(SITE));
+    }
+
+    @Test
+    public void closesWhenTheProbeSucceeds() throws InterruptedException {
+        final SearchCircuitBreaker breaker = open();
+        Thread.sleep(2 * COOLDOWN);
+        assertTrue(breaker.allowRequest(SITE));
+        breaker.recordSuccess(SITE);
+        assertEquals(SearchCircuitBreaker.State.CLOSED, breaker.getState(SITE));
+        assertTrue(breaker.allowRequest(SITE));
+    }
+
+    @Test
+    public void opensAgainWhenTheProbeFails() throws InterruptedException {
+        final SearchCircuitBreaker breaker = open();
+        Thread.sleep(2 * COOLDOWN);
+        assertTrue(breaker.allowRequest(SITE));
+        breaker.recordFailure(SITE);
+        assertEquals(SearchCircuitBreaker.State.OPEN, breaker.getState(SITE));
+    }
+
+    @Test
+    public void replacesAProbeWhoseOutcomeIsLost() throws InterruptedException {
+        final SearchCircuitBreaker breaker = open();
+        Thread.sleep(2 * COOLDOWN);
+        assertTrue(breaker.allowRequest(SITE));
+        Thread.sleep(2 * COOLDOWN);
+        assertTrue(breaker.allowRequest(SITE));
+        assertEquals(SearchCircuitBreaker.State.HALF_OPEN, breaker.getState(SITE));
+    }
+
+    private static SearchCircuitBreaker open() {
+        final SearchCircuitBreaker breaker = new SearchCircuitBreaker(1, COOLDOWN);
+        breaker.recordFailure(SITE);
+        assertEquals(SearchCircuitBreaker.State.OPEN, breaker.getState(SITE));
+        return breaker;
+    }
+
+}